@@ -18,21 +18,28 @@ public class AppExecutor {
     private final Executor detectorThread;
     private final Executor animationThread;
     private final Executor mainThread;
+    private final Executor ioThread;
+    private final Executor lookupThread;
 
     public AppExecutor(Executor analyzerThread,
                        Executor detectorThread,
                        Executor animationThread,
-                       Executor mainThread) {
+                       Executor mainThread,
+                       Executor ioThread,
+                       Executor lookupThread) {
         this.analyzerThread = analyzerThread;
         this.detectorThread = detectorThread;
         this.animationThread = animationThread;
         this.mainThread = mainThread;
+        this.ioThread = ioThread;
+        this.lookupThread = lookupThread;
     }
 
     @Inject
     public AppExecutor() {
         this(Executors.newFixedThreadPool(3), new AnimationThreadExecutor(), Executors.newFixedThreadPool(3),
-                new MainThreadExecutor());
+                new MainThreadExecutor(), Executors.newSingleThreadExecutor(),
+                Executors.newSingleThreadExecutor());
     }
 
 
@@ -51,6 +58,16 @@ public class AppExecutor {
         return mainThread;
     }
 
+    /** Single thread for disk writes, so they never queue behind frame analysis or the UI. */
+    public Executor ioThread() {
+        return ioThread;
+    }
+
+    /** Single thread for lookups in memory-mapped data, so they never wait behind disk writes. */
+    public Executor lookupThread() {
+        return lookupThread;
+    }
+
 
 
     public static class MainThreadExecutor implements Executor {
@@ -18,23 +18,32 @@ package ITM.maint.barcodescan;
 
 import android.graphics.Canvas;
 import android.graphics.Path;
+import androidx.annotation.Nullable;
 import ITM.maint.barcodescan.common.GraphicOverlay;
 import ITM.maint.barcodescan.common.preferences.PreferenceUtils;
-import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
+import ITM.maint.barcodescan.decoder.DecodedBarcode;
 
 /** Guides user to move camera closer to confirm the detected barcode. */
 public class BarcodeConfirmingGraphic extends BarcodeGraphicBase {
 
-    private final FirebaseVisionBarcode barcode;
+    @Nullable private DecodedBarcode barcode;
 
-    public BarcodeConfirmingGraphic(GraphicOverlay overlay, FirebaseVisionBarcode barcode) {
+    public BarcodeConfirmingGraphic(GraphicOverlay overlay, @Nullable DecodedBarcode barcode) {
         super(overlay);
         this.barcode = barcode;
     }
 
+    /** Points the graphic at the latest detection of the barcode, so it can be reused per frame. */
+    void setBarcode(@Nullable DecodedBarcode barcode) {
+        this.barcode = barcode;
+    }
+
     @Override
     public void draw(Canvas canvas) {
         super.draw(canvas);
+        if (barcode == null) {
+            return;
+        }
 
         // Draws a highlighted path to indicate the current progress to meet size requirement.
         float sizeProgress = PreferenceUtils.getProgressToMeetBarcodeSizeRequirement(overlay, barcode);
@@ -0,0 +1,570 @@
+package ITM.maint.barcodescan;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.Image;
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.firebase.ml.vision.common.FirebaseVisionImage;
+import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ITM.maint.barcodescan.common.BarcodeTracker;
+import ITM.maint.barcodescan.common.ConsensusVoter;
+import ITM.maint.barcodescan.common.FrameBufferPool;
+import ITM.maint.barcodescan.common.FrameGate;
+import ITM.maint.barcodescan.common.FrameMetadata;
+import ITM.maint.barcodescan.common.GraphicOverlay;
+import ITM.maint.barcodescan.common.LumaPrefilter;
+import ITM.maint.barcodescan.common.ReticleCropper;
+import ITM.maint.barcodescan.common.ReticleCropper.CroppedFrame;
+import ITM.maint.barcodescan.common.VisionImageProcessor;
+import ITM.maint.barcodescan.common.WorkflowModel;
+import ITM.maint.barcodescan.common.WorkflowModel.WorkflowState;
+import ITM.maint.barcodescan.common.preferences.PreferenceUtils;
+import ITM.maint.barcodescan.common.preferences.ScanSettings;
+import ITM.maint.barcodescan.data.AssetRepository;
+import ITM.maint.barcodescan.data.PickList;
+import ITM.maint.barcodescan.data.ScanHistoryStore;
+import ITM.maint.barcodescan.data.ScanRecord;
+import ITM.maint.barcodescan.decoder.BarcodeDecoder;
+import ITM.maint.barcodescan.decoder.BarcodeDecoders;
+import ITM.maint.barcodescan.decoder.DecodedBarcode;
+import ITM.maint.barcodescan.decoder.DecoderPrewarmer;
+import ITM.maint.barcodescan.perf.PipelineMetrics;
+import ITM.maint.barcodescan.perf.PipelineMetrics.Stage;
+import ITM.maint.barcodescan.perf.StartupTimeline;
+
+/**
+ * Barcode detection shared by the Camera2 and CameraX paths. Every frame goes through the same
+ * stages: acquire (copy the reticle region out of the camera image), preprocess, detect,
+ * post-process (pick the barcode in the centre) and render. Subclasses can override any stage.
+ * Detection goes through a {@link BarcodeDecoder}, the backend selected in settings unless one is
+ * {@link #setDecoder set explicitly}, taken warm from the {@link #setPrewarmer prewarmer} when
+ * it has one ready.
+ * Between post-process and render, a {@link ConsensusVoter} holds a barcode back until it was read
+ * on enough recent frames.
+ *
+ * <p>One frame is in the detector at a time. Frames that arrive meanwhile wait in a queue of
+ * {@link #setQueueDepth(int) configurable depth}; when it is full the oldest waiting frame is
+ * dropped, so the detector always moves on to the latest frame.
+ *
+ * <p>Each stage is timed into the {@link #getMetrics() pipeline metrics} and wrapped in a trace
+ * section.
+ */
+public class BarcodeProcessor implements VisionImageProcessor {
+
+    private static final String TAG = "BarcodeProcessor";
+
+    public static final int DEFAULT_QUEUE_DEPTH = 1;
+
+    // Only one frame is in the detector at a time, so its async trace sections never overlap.
+    private static final int DETECT_TRACE_COOKIE = 0;
+
+    private final Context context;
+    private final WorkflowModel workflowModel;
+    private final RenderCoordinator renderCoordinator;
+    private final Executor mainThreadExecutor = new AppExecutor.MainThreadExecutor();
+    private final FrameGate frameGate = new FrameGate();
+    private final FrameBufferPool bufferPool = new FrameBufferPool();
+    private final ReticleCropper reticleCropper;
+    private final BarcodeTracker tracker = new BarcodeTracker();
+    private final ConsensusVoter consensusVoter = new ConsensusVoter(1, 1);
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    private final LumaPrefilter prefilter = new LumaPrefilter();
+
+    private final Object queueLock = new Object();
+    private final ArrayDeque<PendingFrame> pendingFrames = new ArrayDeque<>();
+    private int queueDepth = DEFAULT_QUEUE_DEPTH;
+    private volatile boolean continuousScan;
+    @Nullable private volatile BarcodeDecoder decoder;
+    // Whether the last decoded frame held no barcode, so an unchanged frame need not be decoded.
+    private volatile boolean lastDecodeEmpty = true;
+    @Nullable private BarcodeDecoder decoderOverride;
+    @Nullable private DecoderPrewarmer prewarmer;
+    // Set by start() until the session's first frame is decoded, whose latency is then logged.
+    private final AtomicBoolean firstDetectPending = new AtomicBoolean();
+    private volatile boolean decoderPrewarmed;
+
+    @Nullable private volatile ScanHistoryStore scanHistory;
+    @Nullable private volatile PickList pickList;
+    private volatile long sessionId;
+    // Set once the current result has gone to the history, cleared when the reticle is empty again.
+    private final AtomicBoolean resultRecorded = new AtomicBoolean();
+
+    /** A frame waiting for the detector, with the overlay its results are drawn on. */
+    private static class PendingFrame {
+        final CroppedFrame frame;
+        final GraphicOverlay graphicOverlay;
+
+        PendingFrame(CroppedFrame frame, GraphicOverlay graphicOverlay) {
+            this.frame = frame;
+            this.graphicOverlay = graphicOverlay;
+        }
+    }
+
+    public BarcodeProcessor(GraphicOverlay graphicOverlay, WorkflowModel workflowModel) {
+        this.context = graphicOverlay.getContext();
+        this.workflowModel = workflowModel;
+        this.renderCoordinator = new RenderCoordinator(graphicOverlay, workflowModel, metrics);
+        graphicOverlay.setPipelineMetrics(metrics);
+        this.reticleCropper = new ReticleCropper(graphicOverlay, bufferPool);
+    }
+
+    /** Opens the decoder and reads the scan settings. Call before the camera starts delivering frames. */
+    public void start() {
+        int barcodeFormats = PreferenceUtils.getBarcodeFormats(context);
+        BarcodeDecoder newDecoder = decoderOverride;
+        decoderPrewarmed = false;
+        if (newDecoder == null) {
+            String backend = PreferenceUtils.getDecoderBackend(context);
+            if (prewarmer != null) {
+                newDecoder = prewarmer.take(backend, barcodeFormats);
+                decoderPrewarmed = newDecoder != null;
+            }
+            if (newDecoder == null) {
+                newDecoder = BarcodeDecoders.create(backend);
+            }
+        }
+        newDecoder.start(barcodeFormats);
+        firstDetectPending.set(true);
+        decoder = newDecoder;
+        reticleCropper.setEnabled(PreferenceUtils.shouldCropToReticle(context));
+        ScanSettings settings = ScanSettings.get(context);
+        consensusVoter.setVoting(settings.consensusVotes, settings.consensusWindow);
+        continuousScan = settings.continuousScan;
+        prefilter.setPreset(settings.prefilterPreset);
+        prefilter.resetCounters();
+        lastDecodeEmpty = true;
+        frameGate.resetCounters();
+        tracker.reset();
+        metrics.reset();
+        sessionId = System.currentTimeMillis();
+        resultRecorded.set(false);
+    }
+
+    /**
+     * Sets the decoder used from the next {@link #start()}, or null to use the backend selected in
+     * settings. Lets tests and benchmarks run the pipeline without ML Kit.
+     */
+    public void setDecoder(@Nullable BarcodeDecoder decoder) {
+        this.decoderOverride = decoder;
+    }
+
+    /**
+     * Sets where {@link #start()} takes a decoder warmed up ahead of the session from, or null to
+     * always build a new one.
+     */
+    public void setPrewarmer(@Nullable DecoderPrewarmer prewarmer) {
+        this.prewarmer = prewarmer;
+    }
+
+    /** Sets where searched barcodes are looked up, or null to show them without asset details. */
+    public void setAssetRepository(@Nullable AssetRepository assetRepository) {
+        renderCoordinator.setAssetRepository(assetRepository);
+    }
+
+    /**
+     * Sets the pick list every newly tracked barcode is matched against, or null to turn
+     * pick-list verification off. Progress is posted to the workflow's pick-list progress.
+     */
+    public void setPickList(@Nullable PickList pickList) {
+        this.pickList = pickList;
+    }
+
+    /** Sets the store accepted scans are recorded in, or null to keep no history. */
+    public void setScanHistory(@Nullable ScanHistoryStore scanHistory) {
+        this.scanHistory = scanHistory;
+    }
+
+    /**
+     * Sets how many frames may wait while the detector is busy. When the queue is full the oldest
+     * waiting frame is dropped.
+     */
+    public void setQueueDepth(int queueDepth) {
+        if (queueDepth < 1) {
+            throw new IllegalArgumentException("Queue depth must be at least 1: " + queueDepth);
+        }
+        synchronized (queueLock) {
+            this.queueDepth = queueDepth;
+            trimQueue();
+        }
+    }
+
+    /** Returns the gate that reports how many frames were processed and dropped. */
+    public FrameGate getFrameGate() {
+        return frameGate;
+    }
+
+    /** Returns the per-stage latency histograms of this processor's frames. */
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Returns the pre-filter that rejects blurred and unchanged frames, with its counts. */
+    public LumaPrefilter getPrefilter() {
+        return prefilter;
+    }
+
+    /** Returns the tracker that follows barcodes across frames. */
+    public BarcodeTracker getTracker() {
+        return tracker;
+    }
+
+    @Override
+    public void process(Image image, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {
+        if (decoder == null) {
+            return;
+        }
+        long receivedNanos = PipelineMetrics.now();
+        CroppedFrame frame;
+        Trace.beginSection("BarcodeProcessor.acquire");
+        try {
+            frame = acquire(image, frameMetadata);
+        } finally {
+            Trace.endSection();
+        }
+        frame.timestamps.sensorNanos = image.getTimestamp();
+        frame.timestamps.receivedNanos = receivedNanos;
+        submit(frame, frameMetadata, graphicOverlay);
+    }
+
+    @Override
+    public void process(ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {
+        if (decoder == null) {
+            return;
+        }
+        long receivedNanos = PipelineMetrics.now();
+        // Copy the frame so the caller can reuse its buffer while this one waits for the detector.
+        ByteBuffer copy = bufferPool.acquireByteBuffer(frameMetadata);
+        ByteBuffer source = data.duplicate();
+        source.rewind();
+        source.limit(Math.min(source.limit(), copy.capacity()));
+        copy.put(source);
+        copy.rewind();
+
+        FirebaseVisionImageMetadata metadata =
+                new FirebaseVisionImageMetadata.Builder()
+                        .setWidth(frameMetadata.getWidth())
+                        .setHeight(frameMetadata.getHeight())
+                        .setFormat(FirebaseVisionImageMetadata.IMAGE_FORMAT_NV21)
+                        .setRotation(frameMetadata.getRotation())
+                        .build();
+        boolean swapped = frameMetadata.getRotation() == FirebaseVisionImageMetadata.ROTATION_90
+                || frameMetadata.getRotation() == FirebaseVisionImageMetadata.ROTATION_270;
+        Rect region = swapped
+                ? new Rect(0, 0, frameMetadata.getHeight(), frameMetadata.getWidth())
+                : new Rect(0, 0, frameMetadata.getWidth(), frameMetadata.getHeight());
+        CroppedFrame frame =
+                new CroppedFrame(
+                        FirebaseVisionImage.fromByteBuffer(copy, metadata),
+                        region,
+                        bufferPool,
+                        copy,
+                        frameMetadata);
+        frame.timestamps.receivedNanos = receivedNanos;
+        submit(frame, frameMetadata, graphicOverlay);
+    }
+
+    @Override
+    public void process(Bitmap bitmap, GraphicOverlay graphicOverlay) {
+        if (decoder == null) {
+            return;
+        }
+        CroppedFrame frame =
+                new CroppedFrame(
+                        FirebaseVisionImage.fromBitmap(bitmap),
+                        new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()),
+                        null,
+                        null,
+                        null);
+        FrameMetadata frameMetadata =
+                new FrameMetadata.Builder()
+                        .setWidth(bitmap.getWidth())
+                        .setHeight(bitmap.getHeight())
+                        .setFormat(ImageFormat.FLEX_RGBA_8888)
+                        .build();
+        submit(frame, frameMetadata, graphicOverlay);
+    }
+
+    @Override
+    public void stop() {
+        synchronized (queueLock) {
+            while (!pendingFrames.isEmpty()) {
+                pendingFrames.poll().frame.release();
+            }
+        }
+        BarcodeDecoder stoppedDecoder = decoder;
+        decoder = null;
+        if (stoppedDecoder != null) {
+            stoppedDecoder.stop();
+        }
+        renderCoordinator.cancel();
+        Log.d(TAG, "Analysis frames: " + frameGate);
+        Log.d(TAG, "Frame buffer pool: " + bufferPool);
+        Log.d(TAG, "Barcode tracker: " + tracker);
+        Log.d(TAG, "Pre-filter: " + prefilter);
+        Log.d(TAG, "Pipeline latency: " + metrics);
+        bufferPool.clear();
+        tracker.reset();
+        consensusVoter.reset();
+    }
+
+    /** Copies the detector input out of the camera image, so the image can be closed right away. */
+    protected CroppedFrame acquire(Image image, FrameMetadata frameMetadata) {
+        return reticleCropper.crop(image, frameMetadata.getRotation());
+    }
+
+    /**
+     * Runs on the thread that delivered the frame, before it is queued. Returns false to reject
+     * the frame without sending it to the detector. Rejections are not counted as drops by the
+     * frame gate; the default {@link #getPrefilter() pre-filter} keeps its own counts.
+     */
+    protected boolean preprocess(CroppedFrame frame, FrameMetadata frameMetadata) {
+        Trace.beginSection("BarcodeProcessor.preprocess");
+        try {
+            return prefilter.accept(frame, lastDecodeEmpty);
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /** Starts detection of one frame. {@code callback} must be called exactly once. */
+    protected void detect(
+            BarcodeDecoder decoder, CroppedFrame frame, BarcodeDecoder.Callback callback) {
+        decoder.decode(frame, callback);
+    }
+
+    /** Returns the barcode under the centre of the overlay, or null if there is none. */
+    @Nullable
+    protected DecodedBarcode postProcess(
+            List<DecodedBarcode> barcodes, CroppedFrame frame, GraphicOverlay graphicOverlay) {
+        float centerX = graphicOverlay.getWidth() / 2f;
+        float centerY = graphicOverlay.getHeight() / 2f;
+        for (DecodedBarcode barcode : barcodes) {
+            if (barcode.getBoundingBox() == null) {
+                continue;
+            }
+            RectF box = frame.toOverlayRect(graphicOverlay, barcode.getBoundingBox());
+            if (box.contains(centerX, centerY)) {
+                return barcode;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Turns the result of one frame into the scene the overlay and workflow should show. The scene
+     * is applied on the next vsync, so this may run on any thread. A barcode that has not been
+     * {@code confirmed} by enough reads is shown as still confirming.
+     *
+     * <p>In continuous scanning a confirmed barcode is added to the workflow's scanned list, unless
+     * it is already in it, and the camera stays live for the next one. Accepted barcodes are
+     * recorded in the {@link #setScanHistory scan history}.
+     */
+    protected void render(
+            @Nullable DecodedBarcode barcodeInCenter,
+            boolean confirmed,
+            CroppedFrame frame,
+            GraphicOverlay graphicOverlay) {
+        Trace.beginSection("BarcodeProcessor.render");
+        try {
+            WorkflowState state;
+            if (barcodeInCenter == null) {
+                state = WorkflowState.DETECTING;
+                resultRecorded.set(false);
+            } else if (!confirmed
+                    || PreferenceUtils.getProgressToMeetBarcodeSizeRequirement(
+                            graphicOverlay, barcodeInCenter) < 1) {
+                state = WorkflowState.CONFIRMING;
+            } else if (continuousScan) {
+                state = WorkflowState.CONFIRMED;
+                boolean isNew = workflowModel.seenBarcodes.add(
+                        barcodeInCenter.getFormat(), barcodeInCenter.getRawValue());
+                if (isNew) {
+                    mainThreadExecutor.execute(
+                            () -> workflowModel.addScannedBarcode(barcodeInCenter));
+                    recordScan(barcodeInCenter, frame);
+                }
+            } else {
+                state = PreferenceUtils.shouldDelayLoadingBarcodeResult(context)
+                        ? WorkflowState.SEARCHING
+                        : WorkflowState.DETECTED;
+                // The camera freezes on the result, but frames already in flight render it again.
+                if (resultRecorded.compareAndSet(false, true)) {
+                    recordScan(barcodeInCenter, frame);
+                }
+            }
+            renderCoordinator.post(
+                    new RenderCoordinator.Scene(state, barcodeInCenter, frame.timestamps));
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Matches every decoded barcode against the pick list. The list tells a label still in view
+     * from one scanned again, so a code held in view counts once rather than on every frame.
+     */
+    private void matchPickList(List<DecodedBarcode> barcodes, long nowNanos) {
+        PickList current = pickList;
+        if (current == null) {
+            return;
+        }
+        boolean counted = false;
+        for (int i = 0; i < barcodes.size(); i++) {
+            String rawValue = barcodes.get(i).getRawValue();
+            if (rawValue != null && current.match(rawValue, nowNanos) != PickList.Match.REPEAT) {
+                counted = true;
+            }
+        }
+        if (counted) {
+            workflowModel.pickListProgress.postValue(current.getProgress());
+        }
+    }
+
+    /** Queues an accepted barcode for the scan history, with its box in upright frame pixels. */
+    private void recordScan(DecodedBarcode barcode, CroppedFrame frame) {
+        ScanHistoryStore history = scanHistory;
+        if (history == null) {
+            return;
+        }
+        Rect box = barcode.getBoundingBox();
+        if (box != null) {
+            box = new Rect(box);
+            box.offset(frame.region.left, frame.region.top);
+        }
+        history.record(new ScanRecord(
+                barcode.getRawValue(), barcode.getFormat(), System.currentTimeMillis(), box, sessionId));
+    }
+
+    /** Called when detection of a frame fails. */
+    protected void onFailure(@NonNull Exception e) {
+        Log.e(TAG, "Barcode detection failed!", e);
+    }
+
+    private void submit(CroppedFrame frame, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {
+        frame.timestamps.acquiredNanos = PipelineMetrics.now();
+        metrics.record(Stage.ACQUIRE, frame.timestamps.receivedNanos, frame.timestamps.acquiredNanos);
+        if (!preprocess(frame, frameMetadata)) {
+            frame.release();
+            return;
+        }
+        List<DecodedBarcode> trackedBarcodes = tracker.lookup(frame);
+        if (trackedBarcodes != null) {
+            // Nothing moved since the tracked codes were last decoded, so skip the detector.
+            // The tracked codes were voted on when they were decoded, so only check the tally.
+            frame.timestamps.completedNanos = PipelineMetrics.now();
+            // Still sightings, so the pick list keeps treating the codes as in view.
+            matchPickList(trackedBarcodes, frame.timestamps.completedNanos);
+            DecodedBarcode barcodeInCenter = postProcess(trackedBarcodes, frame, graphicOverlay);
+            render(barcodeInCenter, consensusVoter.isConfirmed(barcodeInCenter), frame, graphicOverlay);
+            frame.release();
+            return;
+        }
+        synchronized (queueLock) {
+            pendingFrames.add(new PendingFrame(frame, graphicOverlay));
+            trimQueue();
+        }
+        processNext();
+    }
+
+    /** Drops the oldest waiting frames until the queue fits its depth. Call with the lock held. */
+    private void trimQueue() {
+        while (pendingFrames.size() > queueDepth) {
+            pendingFrames.poll().frame.release();
+            frameGate.recordDropped();
+        }
+    }
+
+    /** Sends the oldest waiting frame to the detector, unless a frame is already in it. */
+    private void processNext() {
+        PendingFrame pending;
+        synchronized (queueLock) {
+            if (pendingFrames.isEmpty() || !frameGate.tryAcquire()) {
+                return;
+            }
+            pending = pendingFrames.poll();
+        }
+
+        BarcodeDecoder currentDecoder = decoder;
+        if (currentDecoder == null) {
+            pending.frame.release();
+            frameGate.abort();
+            return;
+        }
+
+        CroppedFrame frame = pending.frame;
+        GraphicOverlay graphicOverlay = pending.graphicOverlay;
+        byte[] signature = BarcodeTracker.signatureOf(frame);
+        frame.timestamps.submittedNanos = PipelineMetrics.now();
+        metrics.record(Stage.QUEUE, frame.timestamps.acquiredNanos, frame.timestamps.submittedNanos);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection("BarcodeProcessor.detect", DETECT_TRACE_COOKIE);
+        }
+        detect(
+                currentDecoder,
+                frame,
+                new BarcodeDecoder.Callback() {
+                    @Override
+                    public void onDecoded(@NonNull List<DecodedBarcode> barcodes) {
+                        try {
+                            frame.timestamps.completedNanos = PipelineMetrics.now();
+                            metrics.record(
+                                    Stage.DETECT,
+                                    frame.timestamps.submittedNanos,
+                                    frame.timestamps.completedNanos);
+                            StartupTimeline.mark(StartupTimeline.Milestone.FIRST_DECODE);
+                            if (firstDetectPending.compareAndSet(true, false)) {
+                                Log.i(TAG, String.format(Locale.US,
+                                        "First frame detected in %.1f ms (%s decoder)",
+                                        (frame.timestamps.completedNanos
+                                                - frame.timestamps.submittedNanos) / 1e6,
+                                        decoderPrewarmed ? "prewarmed" : "cold"));
+                            }
+                            lastDecodeEmpty = barcodes.isEmpty();
+                            tracker.update(barcodes, signature);
+                            matchPickList(barcodes, frame.timestamps.completedNanos);
+                            DecodedBarcode barcodeInCenter =
+                                    postProcess(barcodes, frame, graphicOverlay);
+                            render(
+                                    barcodeInCenter,
+                                    consensusVoter.vote(barcodeInCenter),
+                                    frame,
+                                    graphicOverlay);
+                        } finally {
+                            complete();
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        BarcodeProcessor.this.onFailure(e);
+                        complete();
+                    }
+
+                    private void complete() {
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                            Trace.endAsyncSection("BarcodeProcessor.detect", DETECT_TRACE_COOKIE);
+                        }
+                        frame.release();
+                        frameGate.exit();
+                        processNext();
+                    }
+                });
+    }
+}
@@ -1,14 +1,28 @@
 package ITM.maint.barcodescan;
 
+import javax.inject.Inject;
+
 import dagger.android.AndroidInjector;
 import dagger.android.support.DaggerApplication;
+import ITM.maint.barcodescan.common.CameraCapabilityCache;
+import ITM.maint.barcodescan.decoder.DecoderPrewarmer;
 import ITM.maint.barcodescan.di.DaggerAppComponent;
 
 public class BaseApplication extends DaggerApplication  {
 
+    @Inject
+    CameraCapabilityCache cameraCapabilityCache;
+
+    @Inject
+    DecoderPrewarmer decoderPrewarmer;
+
     @Override
     public void onCreate() {
         super.onCreate();
+        // Read while the first activity inflates, so opening the camera need not wait for it.
+        cameraCapabilityCache.prefetch();
+        // Likewise loads the detector's model and native code before the first frame needs them.
+        decoderPrewarmer.prewarm();
     }
 
 
@@ -16,4 +30,4 @@ public class BaseApplication extends DaggerApplication  {
     protected AndroidInjector<? extends DaggerApplication> applicationInjector() {
         return DaggerAppComponent.builder().application(this).build();
     }
-}
\ No newline at end of file
+}
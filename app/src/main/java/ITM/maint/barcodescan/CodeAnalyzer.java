@@ -1,176 +1,64 @@
 package ITM.maint.barcodescan;
 
-import android.animation.ValueAnimator;
-import android.content.Context;
-import android.graphics.ImageFormat;
-import android.graphics.Point;
-import android.graphics.Rect;
-import android.graphics.RectF;
-import android.util.Log;
-import android.util.SparseIntArray;
-import android.view.Surface;
-import android.view.WindowManager;
+import android.os.Trace;
+import android.util.Size;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.experimental.UseExperimental;
 import androidx.camera.core.ImageAnalysis;
 import androidx.camera.core.ImageProxy;
 
-import com.google.android.gms.tasks.Task;
-import com.google.firebase.ml.vision.FirebaseVision;
-import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
-import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetector;
-import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetectorOptions;
-import com.google.firebase.ml.vision.common.FirebaseVisionImage;
-import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
-
-import java.io.IOException;
-import java.util.List;
-import java.util.concurrent.Executor;
-
-import ITM.maint.barcodescan.common.CameraReticleAnimator;
+import ITM.maint.barcodescan.common.FrameMetadata;
 import ITM.maint.barcodescan.common.GraphicOverlay;
-import ITM.maint.barcodescan.common.WorkflowModel;
-import ITM.maint.barcodescan.common.WorkflowModel.WorkflowState;
-import ITM.maint.barcodescan.common.preferences.PreferenceUtils;
+import ITM.maint.barcodescan.common.VisionImageProcessor;
 
+/** Feeds CameraX analysis frames to the same {@link VisionImageProcessor} the Camera2 path uses. */
 public class CodeAnalyzer implements ImageAnalysis.Analyzer {
 
     public static final String TAG = "CodeAnalyzer";
-    private Context context;
-    private Executor executor;
-    private GraphicOverlay graphicOverlay;
-    private final CameraReticleAnimator cameraReticleAnimator;
-    private FirebaseVisionBarcodeDetector barcodeDetector;
-    private WorkflowModel workflowModel;
+    private final GraphicOverlay graphicOverlay;
+    private final VisionImageProcessor frameProcessor;
+    private FrameMetadata frameMetadata;
 
-
-    private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
-    static {
-        ORIENTATIONS.append(Surface.ROTATION_0, 90);
-        ORIENTATIONS.append(Surface.ROTATION_90, 0);
-        ORIENTATIONS.append(Surface.ROTATION_180, 270);
-        ORIENTATIONS.append(Surface.ROTATION_270, 180);
-    }
-
-    public CodeAnalyzer(Context context,  Executor executor, WorkflowModel workflowModel) {
-        this.context = context;
-        this.executor = executor;
+    public CodeAnalyzer(GraphicOverlay graphicOverlay, VisionImageProcessor frameProcessor) {
         this.graphicOverlay = graphicOverlay;
-        this.cameraReticleAnimator = new CameraReticleAnimator(graphicOverlay);
-        this.workflowModel = workflowModel;
-    }
-
-    private int getFirebaseRotation(Context context) {
-        int rotation = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay().getRotation();
-        switch (rotation) {
-            case Surface.ROTATION_0:
-                return FirebaseVisionImageMetadata.ROTATION_0;
-            case Surface.ROTATION_90:
-                return FirebaseVisionImageMetadata.ROTATION_90;
-            case Surface.ROTATION_180:
-                return FirebaseVisionImageMetadata.ROTATION_180;
-            case Surface.ROTATION_270:
-                return FirebaseVisionImageMetadata.ROTATION_270;
-            default:
-                throw new IllegalArgumentException(
-                        "Invalid rotation value."
-                );
-        }
+        this.frameProcessor = frameProcessor;
     }
 
     @Override
     @UseExperimental(markerClass = androidx.camera.core.ExperimentalGetImage.class)
     public void analyze(@NonNull ImageProxy image) {
-        if (image == null || image.getImage() == null) {
-            return;
+        Trace.beginSection("CodeAnalyzer.analyze");
+        try {
+            if (image.getImage() == null) {
+                return;
+            }
+            frameProcessor.process(image.getImage(), getFrameMetadata(image), graphicOverlay);
+        } finally {
+            image.close();
+            Trace.endSection();
         }
-
-
-        FirebaseVisionBarcodeDetectorOptions options =
-                new FirebaseVisionBarcodeDetectorOptions.Builder()
-                        .setBarcodeFormats(FirebaseVisionBarcode.FORMAT_ALL_FORMATS)
-                        .build();
-        barcodeDetector = FirebaseVision.getInstance().getVisionBarcodeDetector(options);
-
-        FirebaseVisionImage visionImage = FirebaseVisionImage.fromMediaImage(image.getImage(), ImageFormat.YUV_420_888 );
-
-        Task<List<FirebaseVisionBarcode>> task;
-        task = barcodeDetector.detectInImage(visionImage);
-        task.addOnSuccessListener(this.executor, barcodes -> {
-                    if (!barcodes.isEmpty()) {
-                        FirebaseVisionBarcode barcodeInCenter = null;
-                        for (FirebaseVisionBarcode barcode : barcodes) {
-                            RectF box = graphicOverlay.translateRect(barcode.getBoundingBox());
-                            if (box.contains(graphicOverlay.getWidth() / 2f, graphicOverlay.getHeight() / 2f)) {
-                                barcodeInCenter = barcode;
-                                break;
-                            }
-
-                            graphicOverlay.clear();
-                            if (barcodeInCenter == null) {
-                                cameraReticleAnimator.start();
-                                graphicOverlay.add(new BarcodeReticleGraphic(graphicOverlay, cameraReticleAnimator));
-                                workflowModel.setWorkflowState(WorkflowState.DETECTING);
-                            } else {
-                                cameraReticleAnimator.cancel();
-                                float sizeProgress =
-                                        PreferenceUtils.getProgressToMeetBarcodeSizeRequirement(graphicOverlay, barcodeInCenter);
-                                if (sizeProgress < 1) {
-                                    // Barcode in the camera view is too small, so prompt user to move camera closer.
-                                    graphicOverlay.add(new BarcodeConfirmingGraphic(graphicOverlay, barcodeInCenter));
-                                    workflowModel.setWorkflowState(WorkflowState.CONFIRMING);
-                                } else {
-                                    // Barcode size in the camera view is sufficient.
-                                    if (PreferenceUtils.shouldDelayLoadingBarcodeResult(graphicOverlay.getContext())) {
-                                        ValueAnimator loadingAnimator = createLoadingAnimator(graphicOverlay, barcodeInCenter);
-                                        loadingAnimator.start();
-                                        graphicOverlay.add(new BarcodeLoadingGraphic(graphicOverlay, loadingAnimator));
-                                        workflowModel.setWorkflowState(WorkflowState.SEARCHING);
-                                    } else {
-                                        workflowModel.setWorkflowState(WorkflowState.DETECTED);
-                                        workflowModel.detectedBarcode.setValue(barcodeInCenter);
-                                    }
-                                }
-                            }
-                            graphicOverlay.invalidate();
-
-                        }
-                    }
-                });
-    }
-
-    private ValueAnimator createLoadingAnimator(
-            GraphicOverlay graphicOverlay, FirebaseVisionBarcode barcode) {
-        float endProgress = 1.1f;
-        ValueAnimator loadingAnimator = ValueAnimator.ofFloat(0f, endProgress);
-        loadingAnimator.setDuration(2000);
-        loadingAnimator.addUpdateListener(
-                animation -> {
-                    if (Float.compare((float) loadingAnimator.getAnimatedValue(), endProgress) >= 0) {
-                        graphicOverlay.clear();
-                    } else {
-                        graphicOverlay.invalidate();
-                    }
-                });
-        return loadingAnimator;
     }
 
-    /*@Override
-    protected void onFailure(Exception e) {
-        Log.e(TAG, "Barcode detection failed!", e);
-    }
-
-    @Override
-    public void stop() {
-        try {
-            barcodeDetector.close();
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to close barcode detector!", e);
+    /**
+     * Returns the metadata of {@code image}, reusing the last one while the frames stay the same.
+     * When they change, the overlay is told the new analysis size, which the reticle crop and the
+     * barcode boxes are mapped with.
+     */
+    private FrameMetadata getFrameMetadata(ImageProxy image) {
+        int rotation = FrameMetadata.toFirebaseRotation(image.getImageInfo().getRotationDegrees());
+        if (frameMetadata == null
+                || frameMetadata.getWidth() != image.getWidth()
+                || frameMetadata.getHeight() != image.getHeight()
+                || frameMetadata.getRotation() != rotation) {
+            frameMetadata = new FrameMetadata.Builder()
+                    .setWidth(image.getWidth())
+                    .setHeight(image.getHeight())
+                    .setRotation(rotation)
+                    .setFormat(image.getFormat())
+                    .build();
+            graphicOverlay.setCameraInfo(new Size(image.getWidth(), image.getHeight()));
         }
-    }*/
+        return frameMetadata;
+    }
 }
-
-
-
-
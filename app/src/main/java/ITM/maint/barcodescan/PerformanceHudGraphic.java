@@ -0,0 +1,193 @@
+package ITM.maint.barcodescan;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
+
+import ITM.maint.barcodescan.common.CameraSourcePreview;
+import ITM.maint.barcodescan.common.GraphicOverlay;
+import ITM.maint.barcodescan.common.GraphicOverlay.Graphic;
+import ITM.maint.barcodescan.common.WorkflowModel;
+import ITM.maint.barcodescan.common.WorkflowModel.WorkflowState;
+import ITM.maint.barcodescan.perf.LatencyHistogram;
+import ITM.maint.barcodescan.perf.PipelineMetrics;
+
+/**
+ * Draws frame rates, dropped frames, detector latency, the workflow state and heap usage in the
+ * corner of the overlay, so slow devices can be diagnosed without a profiler. The figures are
+ * refreshed {@link #UPDATE_INTERVAL_MS} apart; in between, draws reuse the text already laid out
+ * into fixed char buffers and allocate nothing.
+ */
+class PerformanceHudGraphic extends Graphic {
+
+    private static final long UPDATE_INTERVAL_MS = 250;
+    private static final int LINE_COUNT = 5;
+    private static final int MAX_LINE_LENGTH = 64;
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    private final BarcodeProcessor barcodeProcessor;
+    private final WorkflowModel workflowModel;
+    @Nullable private final CameraSourcePreview preview;
+    private final Runtime runtime = Runtime.getRuntime();
+
+    private final Paint textPaint;
+    private final Paint backgroundPaint;
+    private final float lineHeight;
+    private final float padding;
+    private final char[][] lines = new char[LINE_COUNT][MAX_LINE_LENGTH];
+    private final int[] lineLengths = new int[LINE_COUNT];
+    private final StringBuilder lineBuilder = new StringBuilder(MAX_LINE_LENGTH);
+    private float textWidth;
+
+    private final Runnable refresh = this::onRefresh;
+    private boolean refreshPosted;
+
+    private long lastUpdateMillis;
+    private long lastAnalyzedCount;
+    private long lastPreviewCount;
+    private long lastDroppedCount;
+
+    PerformanceHudGraphic(
+            GraphicOverlay overlay,
+            BarcodeProcessor barcodeProcessor,
+            WorkflowModel workflowModel,
+            @Nullable CameraSourcePreview preview) {
+        super(overlay);
+        this.barcodeProcessor = barcodeProcessor;
+        this.workflowModel = workflowModel;
+        this.preview = preview;
+
+        textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        textPaint.setColor(ContextCompat.getColor(context, R.color.white));
+        textPaint.setTextSize(context.getResources().getDimension(R.dimen.performance_hud_text_size));
+        backgroundPaint = new Paint();
+        backgroundPaint.setColor(ContextCompat.getColor(context, R.color.dark));
+        Paint.FontMetrics fontMetrics = textPaint.getFontMetrics();
+        lineHeight = fontMetrics.descent - fontMetrics.ascent;
+        padding = lineHeight / 3;
+    }
+
+    @Override
+    protected void draw(Canvas canvas) {
+        long nowMillis = SystemClock.elapsedRealtime();
+        if (nowMillis - lastUpdateMillis >= UPDATE_INTERVAL_MS) {
+            update(nowMillis);
+        }
+
+        float left = padding;
+        float top = overlay.getHeight() / 4f;
+        canvas.drawRect(
+                left, top, left + textWidth + 2 * padding, top + LINE_COUNT * lineHeight + 2 * padding,
+                backgroundPaint);
+        float baseline = top + padding - textPaint.ascent();
+        for (int i = 0; i < LINE_COUNT; i++) {
+            canvas.drawText(lines[i], 0, lineLengths[i], left + padding, baseline, textPaint);
+            baseline += lineHeight;
+        }
+
+        // Keep redrawing at the update rate even when nothing else invalidates the overlay.
+        if (!refreshPosted) {
+            refreshPosted = true;
+            overlay.postDelayed(refresh, UPDATE_INTERVAL_MS);
+        }
+    }
+
+    @Override
+    protected void release() {
+        overlay.removeCallbacks(refresh);
+        refreshPosted = false;
+    }
+
+    private void onRefresh() {
+        refreshPosted = false;
+        overlay.invalidate();
+    }
+
+    private void update(long nowMillis) {
+        long analyzedCount = barcodeProcessor.getFrameGate().getProcessedFrameCount()
+                + barcodeProcessor.getTracker().getReusedFrameCount();
+        long previewCount = preview != null ? preview.getPreviewFrameCount() : 0;
+        long droppedCount = barcodeProcessor.getFrameGate().getDroppedFrameCount();
+        long elapsedMillis = nowMillis - lastUpdateMillis;
+        boolean hasPrevious = lastUpdateMillis != 0;
+
+        StringBuilder line = startLine();
+        line.append("Analyzed ");
+        appendRate(line, hasPrevious ? analyzedCount - lastAnalyzedCount : 0, elapsedMillis);
+        line.append(" fps  Preview ");
+        appendRate(line, hasPrevious ? previewCount - lastPreviewCount : 0, elapsedMillis);
+        line.append(" fps");
+        endLine(0);
+
+        line = startLine();
+        line.append("Dropped ").append(droppedCount).append(" (");
+        appendRate(line, hasPrevious ? droppedCount - lastDroppedCount : 0, elapsedMillis);
+        line.append("/s)  Filtered ")
+                .append(barcodeProcessor.getPrefilter().getBlurredCount())
+                .append(" blurred ")
+                .append(barcodeProcessor.getPrefilter().getUnchangedCount())
+                .append(" still");
+        endLine(1);
+
+        LatencyHistogram detect =
+                barcodeProcessor.getMetrics().getHistogram(PipelineMetrics.Stage.DETECT);
+        line = startLine();
+        line.append("Detect p50 ");
+        appendTenths(line, detect.getPercentileMillis(50));
+        line.append(" p95 ");
+        appendTenths(line, detect.getPercentileMillis(95));
+        line.append(" p99 ");
+        appendTenths(line, detect.getPercentileMillis(99));
+        line.append(" ms");
+        endLine(2);
+
+        WorkflowState state = workflowModel.workflowState.getValue();
+        line = startLine();
+        line.append("State ").append(state != null ? state.name() : "-");
+        endLine(3);
+
+        long usedBytes = runtime.totalMemory() - runtime.freeMemory();
+        line = startLine();
+        line.append("Heap ")
+                .append(usedBytes / BYTES_PER_MB)
+                .append(" / ")
+                .append(runtime.maxMemory() / BYTES_PER_MB)
+                .append(" MB");
+        endLine(4);
+
+        textWidth = 0;
+        for (int i = 0; i < LINE_COUNT; i++) {
+            textWidth = Math.max(textWidth, textPaint.measureText(lines[i], 0, lineLengths[i]));
+        }
+        lastUpdateMillis = nowMillis;
+        lastAnalyzedCount = analyzedCount;
+        lastPreviewCount = previewCount;
+        lastDroppedCount = droppedCount;
+    }
+
+    private StringBuilder startLine() {
+        lineBuilder.setLength(0);
+        return lineBuilder;
+    }
+
+    /** Copies the built line into its char buffer, cutting it off if it is too long. */
+    private void endLine(int index) {
+        int length = Math.min(lineBuilder.length(), MAX_LINE_LENGTH);
+        lineBuilder.getChars(0, length, lines[index], 0);
+        lineLengths[index] = length;
+    }
+
+    private static void appendRate(StringBuilder line, long count, long elapsedMillis) {
+        // Counters restart with the camera session, which would show as a negative rate.
+        appendTenths(line, elapsedMillis > 0 ? Math.max(count, 0) * 1000.0 / elapsedMillis : 0);
+    }
+
+    /** Appends {@code value} with one decimal, without the allocations of float formatting. */
+    private static void appendTenths(StringBuilder line, double value) {
+        long tenths = Math.round(value * 10);
+        line.append(tenths / 10).append('.').append(tenths % 10);
+    }
+}
@@ -0,0 +1,240 @@
+package ITM.maint.barcodescan;
+
+import android.animation.ValueAnimator;
+import android.os.Trace;
+import android.view.Choreographer;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ITM.maint.barcodescan.common.CameraReticleAnimator;
+import ITM.maint.barcodescan.common.GraphicOverlay;
+import ITM.maint.barcodescan.common.WorkflowModel;
+import ITM.maint.barcodescan.common.WorkflowModel.WorkflowState;
+import ITM.maint.barcodescan.common.preferences.ScanSettings;
+import ITM.maint.barcodescan.data.AssetRepository;
+import ITM.maint.barcodescan.decoder.DecodedBarcode;
+import ITM.maint.barcodescan.perf.FrameTimestamps;
+import ITM.maint.barcodescan.perf.PipelineMetrics;
+
+/**
+ * Applies detection results to the overlay and the workflow once per display frame. Results can be
+ * posted from any thread; only the latest {@link Scene} posted before a vsync is applied, on the
+ * main thread, with a single invalidate. The reticle and confirming graphics are created once and
+ * reused for every frame.
+ *
+ * <p>In the searching state the barcode is looked up in the {@link AssetRepository}, and the
+ * workflow moves on to searched as soon as the lookup answers.
+ */
+public class RenderCoordinator implements Choreographer.FrameCallback {
+
+    /** What the overlay should show for one detection result. Immutable. */
+    public static final class Scene {
+        public final WorkflowState state;
+        @Nullable public final DecodedBarcode barcode;
+        // Of the frame the scene was computed from, if it came from one.
+        @Nullable public final FrameTimestamps timestamps;
+
+        public Scene(WorkflowState state, @Nullable DecodedBarcode barcode) {
+            this(state, barcode, null);
+        }
+
+        public Scene(
+                WorkflowState state,
+                @Nullable DecodedBarcode barcode,
+                @Nullable FrameTimestamps timestamps) {
+            this.state = state;
+            this.barcode = barcode;
+            this.timestamps = timestamps;
+        }
+
+        boolean isSameAs(@Nullable Scene other) {
+            return other != null && state == other.state && barcode == other.barcode;
+        }
+    }
+
+    private final GraphicOverlay graphicOverlay;
+    private final WorkflowModel workflowModel;
+    private final PipelineMetrics metrics;
+    private final Choreographer choreographer;
+    private final CameraReticleAnimator cameraReticleAnimator;
+    private final AtomicReference<Scene> pendingScene = new AtomicReference<>();
+    @Nullable private volatile AssetRepository assetRepository;
+
+    // Only touched on the main thread.
+    @Nullable private Scene currentScene;
+    @Nullable private ValueAnimator loadingAnimator;
+    private BarcodeReticleGraphic reticleGraphic;
+    private BarcodeConfirmingGraphic confirmingGraphic;
+    private int graphicsWidth;
+    private int graphicsHeight;
+    // The settings the graphics' reticle box was read from.
+    @Nullable private ScanSettings graphicsSettings;
+    // Bumped whenever a search starts or is abandoned, so late lookup results can be ignored.
+    private int searchGeneration;
+
+    @MainThread
+    public RenderCoordinator(
+            GraphicOverlay graphicOverlay, WorkflowModel workflowModel, PipelineMetrics metrics) {
+        this.graphicOverlay = graphicOverlay;
+        this.workflowModel = workflowModel;
+        this.metrics = metrics;
+        this.choreographer = Choreographer.getInstance();
+        this.cameraReticleAnimator = new CameraReticleAnimator(graphicOverlay);
+    }
+
+    /** Sets where searched barcodes are looked up, or null to show them without asset details. */
+    public void setAssetRepository(@Nullable AssetRepository assetRepository) {
+        this.assetRepository = assetRepository;
+    }
+
+    /** Queues {@code scene} for the next vsync, replacing any scene that has not been drawn yet. */
+    public void post(Scene scene) {
+        if (pendingScene.getAndSet(scene) == null) {
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    /** Drops any pending scene and stops the overlay animations. */
+    @MainThread
+    public void cancel() {
+        choreographer.removeFrameCallback(this);
+        pendingScene.set(null);
+        currentScene = null;
+        cameraReticleAnimator.cancel();
+        cancelLoadingAnimator();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        Scene scene = pendingScene.getAndSet(null);
+        if (scene == null || !workflowModel.isCameraLive()) {
+            return;
+        }
+        if (scene.isSameAs(currentScene)) {
+            // Nothing changed; the animators redraw the overlay on their own.
+            return;
+        }
+        Trace.beginSection("RenderCoordinator.apply");
+        try {
+            apply(scene);
+        } finally {
+            Trace.endSection();
+        }
+        currentScene = scene;
+        if (scene.timestamps != null) {
+            long appliedNanos = PipelineMetrics.now();
+            metrics.record(PipelineMetrics.Stage.RESULT, scene.timestamps.completedNanos, appliedNanos);
+            metrics.recordSensorLatency(scene.timestamps.sensorNanos, appliedNanos);
+        }
+    }
+
+    private void apply(Scene scene) {
+        ensureGraphics();
+        switch (scene.state) {
+            case DETECTING:
+                cancelLoadingAnimator();
+                cameraReticleAnimator.start();
+                graphicOverlay.setGraphic(reticleGraphic);
+                break;
+            case CONFIRMING:
+            case CONFIRMED:
+                // Confirming: the barcode is too small or not read often enough yet. Confirmed: it
+                // was accepted in continuous scanning. Both outline the reticle.
+                cancelLoadingAnimator();
+                cameraReticleAnimator.cancel();
+                confirmingGraphic.setBarcode(scene.barcode);
+                graphicOverlay.setGraphic(confirmingGraphic);
+                break;
+            case SEARCHING:
+                cameraReticleAnimator.cancel();
+                cancelLoadingAnimator();
+                loadingAnimator = createLoadingAnimator();
+                loadingAnimator.start();
+                graphicOverlay.setGraphic(new BarcodeLoadingGraphic(graphicOverlay, loadingAnimator));
+                break;
+            default:
+                cameraReticleAnimator.cancel();
+                cancelLoadingAnimator();
+                graphicOverlay.setGraphic(null);
+                break;
+        }
+
+        if (workflowModel.workflowState.getValue() != scene.state) {
+            workflowModel.setWorkflowState(scene.state);
+        }
+        if (scene.state == WorkflowState.DETECTED) {
+            workflowModel.assetFields.setValue(null);
+            workflowModel.detectedBarcode.setValue(scene.barcode);
+        }
+        graphicOverlay.invalidate();
+        if (scene.state == WorkflowState.SEARCHING) {
+            // Last, as a lookup that answers right away moves the workflow on to searched.
+            search(scene.barcode);
+        }
+    }
+
+    /**
+     * Builds the reusable graphics, again if the overlay was resized or the settings changed since,
+     * as they cache the reticle box.
+     */
+    private void ensureGraphics() {
+        ScanSettings settings = ScanSettings.get(graphicOverlay.getContext());
+        if (reticleGraphic != null
+                && graphicsWidth == graphicOverlay.getWidth()
+                && graphicsHeight == graphicOverlay.getHeight()
+                && graphicsSettings == settings) {
+            return;
+        }
+        graphicsWidth = graphicOverlay.getWidth();
+        graphicsHeight = graphicOverlay.getHeight();
+        graphicsSettings = settings;
+        reticleGraphic = new BarcodeReticleGraphic(graphicOverlay, cameraReticleAnimator);
+        confirmingGraphic = new BarcodeConfirmingGraphic(graphicOverlay, null);
+    }
+
+    private void search(DecodedBarcode barcode) {
+        int generation = searchGeneration;
+        AssetRepository repository = assetRepository;
+        if (repository == null) {
+            onSearched(barcode, null);
+            return;
+        }
+        repository.lookup(
+                barcode.getRawValue(),
+                fields -> {
+                    if (generation == searchGeneration) {
+                        onSearched(barcode, fields);
+                    }
+                });
+    }
+
+    private void onSearched(DecodedBarcode barcode, @Nullable List<BarcodeField> fields) {
+        cancelLoadingAnimator();
+        graphicOverlay.clear();
+        workflowModel.assetFields.setValue(fields);
+        workflowModel.setWorkflowState(WorkflowState.SEARCHED);
+        workflowModel.detectedBarcode.setValue(barcode);
+    }
+
+    private void cancelLoadingAnimator() {
+        searchGeneration++;
+        if (loadingAnimator != null) {
+            loadingAnimator.removeAllUpdateListeners();
+            loadingAnimator.cancel();
+            loadingAnimator = null;
+        }
+    }
+
+    /** Circles the reticle until the lookup answers. */
+    private ValueAnimator createLoadingAnimator() {
+        ValueAnimator loadingAnimator = ValueAnimator.ofFloat(0f, 1f);
+        loadingAnimator.setDuration(2000);
+        loadingAnimator.setRepeatCount(ValueAnimator.INFINITE);
+        loadingAnimator.addUpdateListener(animation -> graphicOverlay.invalidate());
+        return loadingAnimator;
+    }
+}
@@ -0,0 +1,59 @@
+package ITM.maint.barcodescan;
+
+import android.view.ViewGroup;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.List;
+import java.util.Objects;
+
+import ITM.maint.barcodescan.BarcodeFieldAdapter.BarcodeFieldViewHolder;
+
+/**
+ * Lists the barcodes accepted in continuous scanning. New lists are diffed against the shown one
+ * off the main thread, so appending a code only binds the new row.
+ */
+class ScannedBarcodeAdapter extends RecyclerView.Adapter<BarcodeFieldViewHolder> {
+
+    private static final DiffUtil.ItemCallback<BarcodeField> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<BarcodeField>() {
+                @Override
+                public boolean areItemsTheSame(
+                        @NonNull BarcodeField oldItem, @NonNull BarcodeField newItem) {
+                    return oldItem == newItem;
+                }
+
+                @Override
+                public boolean areContentsTheSame(
+                        @NonNull BarcodeField oldItem, @NonNull BarcodeField newItem) {
+                    return Objects.equals(oldItem.label, newItem.label)
+                            && Objects.equals(oldItem.value, newItem.value);
+                }
+            };
+
+    private final AsyncListDiffer<BarcodeField> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+
+    /** Shows {@code barcodeFields}, which must not be modified afterwards. */
+    void submitList(List<BarcodeField> barcodeFields) {
+        differ.submitList(barcodeFields);
+    }
+
+    @Override
+    @NonNull
+    public BarcodeFieldViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return BarcodeFieldViewHolder.create(parent);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull BarcodeFieldViewHolder holder, int position) {
+        holder.bindBarcodeField(differ.getCurrentList().get(position));
+    }
+
+    @Override
+    public int getItemCount() {
+        return differ.getCurrentList().size();
+    }
+}
@@ -2,15 +2,11 @@ package ITM.maint.barcodescan;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.graphics.SurfaceTexture;
-import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.os.Bundle;
 
 import androidx.camera.core.Camera;
 import androidx.preference.ListPreference;
+import androidx.preference.MultiSelectListPreference;
 import androidx.preference.PreferenceFragmentCompat;
 
 import java.util.ArrayList;
@@ -19,21 +15,69 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import javax.inject.Inject;
+
+import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import android.util.Size;
 
+import ITM.maint.barcodescan.common.CameraCapabilityCache;
 import ITM.maint.barcodescan.common.preferences.PreferenceUtils;
+import dagger.android.support.AndroidSupportInjection;
 
 public class SettingsFragment extends PreferenceFragmentCompat {
 
     public static final float ASPECT_RATIO_TOLERANCE = 0.01f;
     private Camera camera;
 
+    @Inject
+    CameraCapabilityCache cameraCapabilityCache;
+
+    @Override
+    public void onAttach(Context context) {
+        AndroidSupportInjection.inject(this);
+        super.onAttach(context);
+    }
+
     @Override
     public void onCreatePreferences(Bundle bundle, String rootKey) {
         setPreferencesFromResource(R.xml.preferences, rootKey);
         setUpRearCameraPreviewSizePreference();
+        setUpBarcodeFormatsPreference();
+    }
+
+    private void setUpBarcodeFormatsPreference() {
+        MultiSelectListPreference formatsPreference =
+                (MultiSelectListPreference) findPreference(getString(R.string.pref_key_barcode_formats));
+        if (formatsPreference == null) {
+            return;
+        }
+
+        formatsPreference.setSummary(getBarcodeFormatsSummary(formatsPreference, formatsPreference.getValues()));
+        formatsPreference.setOnPreferenceChangeListener(
+                (preference, newValue) -> {
+                    @SuppressWarnings("unchecked")
+                    Set<String> newFormatValues = (Set<String>) newValue;
+                    formatsPreference.setSummary(getBarcodeFormatsSummary(formatsPreference, newFormatValues));
+                    return true;
+                });
+    }
+
+    private String getBarcodeFormatsSummary(MultiSelectListPreference preference, Set<String> values) {
+        if (values == null || values.isEmpty()) {
+            return getString(R.string.pref_summary_barcode_formats);
+        }
+        List<String> entries = new ArrayList<>();
+        for (String value : values) {
+            int index = preference.findIndexOfValue(value);
+            if (index >= 0) {
+                entries.add(preference.getEntries()[index].toString());
+            }
+        }
+        Collections.sort(entries);
+        return TextUtils.join(", ", entries);
     }
 
     @SuppressLint("RestrictedApi")
@@ -79,35 +123,26 @@ public class SettingsFragment extends PreferenceFragmentCompat {
     }
 
     private List<Size> setupCamera(int width, int height) {
-        CameraManager cameraManager = (CameraManager) this.getContext().getSystemService(Context.CAMERA_SERVICE);
-        try {
-            for(String cameraId : cameraManager.getCameraIdList()) {
-                CameraCharacteristics cameraCharacteristics = cameraManager.getCameraCharacteristics(cameraId);
-                if(cameraCharacteristics.get(CameraCharacteristics.LENS_FACING) ==
-                        CameraCharacteristics.LENS_FACING_FRONT){
-                    continue;
+        // Usually already loaded by the scan screen, so no camera service round trip is needed.
+        CameraCapabilityCache.Capabilities capabilities = cameraCapabilityCache.get();
+        if (capabilities == null) {
+            return null;
+        }
+        List<Size> collectorSizes = new ArrayList<>();
+        for(Size option : capabilities.previewSizes){
+            if(width > height) {
+                if(option.getWidth() > width &&
+                        option.getHeight() > height) {
+                    collectorSizes.add(option);
                 }
-                StreamConfigurationMap map = cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                List<Size> collectorSizes = new ArrayList<>();
-                for(Size option : map.getOutputSizes(SurfaceTexture.class)){
-                    if(width > height) {
-                        if(option.getWidth() > width &&
-                                option.getHeight() > height) {
-                            collectorSizes.add(option);
-                        }
-                    } else {
-                        if(option.getWidth() > height &&
-                                option.getHeight() > width) {
-                            collectorSizes.add(option);
-                        }
-                    }
+            } else {
+                if(option.getWidth() > height &&
+                        option.getHeight() > width) {
+                    collectorSizes.add(option);
                 }
-                return collectorSizes;
             }
-        } catch (CameraAccessException  e) {
-            e.printStackTrace();
         }
-        return null;
+        return collectorSizes;
     }
 
     private Size getPreferredPreviewSize(Size[] mapSizes, int width, int height) {
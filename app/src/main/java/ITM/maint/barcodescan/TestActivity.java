@@ -16,6 +16,7 @@ import android.view.ViewGroup;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.camera.core.Camera;
 import androidx.camera.core.CameraSelector;
 import androidx.camera.lifecycle.ProcessCameraProvider;
@@ -24,22 +25,37 @@ import androidx.camera.core.Preview;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.chip.Chip;
 import com.google.common.base.Objects;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 import javax.inject.Inject;
 
+import ITM.maint.barcodescan.common.CameraCapabilityCache;
 import ITM.maint.barcodescan.common.CameraSource;
 import ITM.maint.barcodescan.common.CameraSourcePreview;
 import ITM.maint.barcodescan.common.GraphicOverlay;
 import ITM.maint.barcodescan.common.WorkflowModel;
 import ITM.maint.barcodescan.common.WorkflowModel.WorkflowState;
+import ITM.maint.barcodescan.common.preferences.PreferenceUtils;
+import ITM.maint.barcodescan.common.preferences.ScanSettings;
+import ITM.maint.barcodescan.data.AssetRepository;
+import ITM.maint.barcodescan.data.PickListRepository;
+import ITM.maint.barcodescan.data.ScanHistoryStore;
+import ITM.maint.barcodescan.decoder.DecoderPrewarmer;
+import ITM.maint.barcodescan.perf.PipelineMetrics;
+import ITM.maint.barcodescan.replay.FrameRecording;
+import ITM.maint.barcodescan.replay.FrameReplaySource;
+import ITM.maint.barcodescan.replay.ReplayReport;
 import dagger.android.support.DaggerAppCompatActivity;
 
 
@@ -49,33 +65,64 @@ public class TestActivity extends DaggerAppCompatActivity implements
     private static final String TAG = "TestActivity";
     private ListenableFuture<ProcessCameraProvider> cameraProviderFuture;
     private CameraSource cameraSource;
+    private GraphicOverlay graphicOverlay;
+    private BarcodeProcessor barcodeProcessor;
     private CameraSourcePreview preview;
     private View settingsButton;
     private View flashButton;
     private Chip promptChip;
+    private Chip pickListChip;
     private AnimatorSet promptChipAnimator;
+    private RecyclerView scannedBarcodeList;
+    private ScannedBarcodeAdapter scannedBarcodeAdapter;
     private WorkflowModel workflowModel;
     private WorkflowState currentWorkflowState;
     private Camera camera;
+    @Nullable private FrameRecording replayRecording;
+    @Nullable private FrameReplaySource replaySource;
 
     @Inject
     AppExecutor appExecutor;
 
+    @Inject
+    ScanHistoryStore scanHistoryStore;
+
+    @Inject
+    AssetRepository assetRepository;
+
+    @Inject
+    PickListRepository pickListRepository;
+
+    @Inject
+    CameraCapabilityCache cameraCapabilityCache;
+
+    @Inject
+    DecoderPrewarmer decoderPrewarmer;
+
     private static final int REQUEST_CAMERA_PERMISSION = 1;
+    private static final String PIPELINE_METRICS_FILE_NAME = "pipeline_metrics.csv";
+    private static final String REPLAY_FILE_NAME = "replay/frames.nv21";
+    private static final float REPLAY_FRAME_RATE = 30;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_live_barcode);
 
-        GraphicOverlay graphicOverlay = findViewById(R.id.camera_preview_graphic_overlay);
+        graphicOverlay = findViewById(R.id.camera_preview_graphic_overlay);
         graphicOverlay.setOnClickListener(this);
+        preview = findViewById(R.id.camera_preview);
 
         promptChip = findViewById(R.id.bottom_prompt_chip);
+        pickListChip = findViewById(R.id.pick_list_progress_chip);
         promptChipAnimator =
                 (AnimatorSet) AnimatorInflater.loadAnimator(this, R.animator.bottom_prompt_chip_enter);
         promptChipAnimator.setTarget(promptChip);
 
+        scannedBarcodeList = findViewById(R.id.scanned_barcode_list);
+        scannedBarcodeList.setLayoutManager(new LinearLayoutManager(this));
+        scannedBarcodeAdapter = new ScannedBarcodeAdapter();
+        scannedBarcodeList.setAdapter(scannedBarcodeAdapter);
 
         findViewById(R.id.close_button).setOnClickListener(this);
         flashButton = findViewById(R.id.flash_button);
@@ -86,21 +133,140 @@ public class TestActivity extends DaggerAppCompatActivity implements
         cameraProviderFuture = ProcessCameraProvider.getInstance(this);
 
         setUpWorkflowModel();
-        cameraSource = new CameraSource(graphicOverlay, workflowModel);
+        cameraSource = new CameraSource(graphicOverlay, cameraCapabilityCache);
+        barcodeProcessor = new BarcodeProcessor(graphicOverlay, workflowModel);
+        barcodeProcessor.setScanHistory(scanHistoryStore);
+        barcodeProcessor.setAssetRepository(assetRepository);
+        barcodeProcessor.setPrewarmer(decoderPrewarmer);
+        cameraSource.setFrameProcessor(barcodeProcessor);
         openCamera();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        cameraSource.start();
-
+        boolean continuousScan = PreferenceUtils.isContinuousScanEnabled(this);
+        // Each session starts with an empty list, so codes from the last one are not counted.
+        workflowModel.clearScannedBarcodes();
+        scannedBarcodeList.setVisibility(continuousScan ? View.VISIBLE : View.GONE);
+        // Keeps the prompt above the scanned list.
+        promptChip.setTranslationY(continuousScan
+                ? -getResources().getDimension(R.dimen.scanned_barcode_list_height) : 0);
+        // The camera opens asynchronously, so it is asked for first and opens while the detector
+        // is built; frames arriving before the processor has started are dropped.
+        FrameRecording recording = openReplayRecording();
+        if (recording == null) {
+            if (PreferenceUtils.isAdaptiveQualityEnabled(this)) {
+                cameraSource.setAdaptiveQuality(
+                        barcodeProcessor.getMetrics(), barcodeProcessor.getFrameGate());
+            } else {
+                cameraSource.setAdaptiveQuality(null, null);
+            }
+            cameraSource.start();
+        }
+        barcodeProcessor.start();
+        graphicOverlay.setHudGraphic(PreferenceUtils.isPerformanceHudEnabled(this)
+                ? new PerformanceHudGraphic(graphicOverlay, barcodeProcessor, workflowModel, preview)
+                : null);
+        barcodeProcessor.setPickList(null);
+        workflowModel.pickListProgress.setValue(null);
+        if (PreferenceUtils.isPickListVerificationEnabled(this)) {
+            pickListRepository.load(
+                    pickList -> {
+                        if (pickList != null && barcodeProcessor != null) {
+                            barcodeProcessor.setPickList(pickList);
+                            workflowModel.pickListProgress.setValue(pickList.getProgress());
+                        }
+                    });
+        }
+        workflowModel.markCameraFrozen();
+        currentWorkflowState = WorkflowState.NOT_STARTED;
+        workflowModel.setWorkflowState(WorkflowState.DETECTING);
+        if (recording != null) {
+            startReplay(recording);
+        }
     }
 
     @Override
     protected void onPause(){
         super.onPause();
+        currentWorkflowState = WorkflowState.NOT_STARTED;
         cameraSource.stop();
+        stopReplay();
+        barcodeProcessor.stop();
+        graphicOverlay.setHudGraphic(null);
+        dumpPipelineMetrics();
+    }
+
+    /**
+     * Opens the recorded frames to feed the processor instead of the camera, if settings ask for
+     * it. Returns null if they do not or the recording cannot be opened.
+     */
+    @Nullable
+    private FrameRecording openReplayRecording() {
+        String frameSource = PreferenceUtils.getFrameSource(this);
+        if (ScanSettings.FRAME_SOURCE_CAMERA.equals(frameSource)) {
+            return null;
+        }
+        File file = new File(getDiagnosticsDirectory(), REPLAY_FILE_NAME);
+        try {
+            return FrameRecording.open(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open " + file + ", using the camera", e);
+            return null;
+        }
+    }
+
+    /** Feeds {@code recording} to the processor, which must have been started. */
+    private void startReplay(FrameRecording recording) {
+        String frameSource = PreferenceUtils.getFrameSource(this);
+        replayRecording = recording;
+        BarcodeProcessor processor = barcodeProcessor;
+        replaySource = new FrameReplaySource(graphicOverlay, replayRecording);
+        replaySource.setFrameProcessor(processor);
+        replaySource.setFrameRate(
+                ScanSettings.FRAME_SOURCE_REPLAY_UNBOUNDED.equals(frameSource) ? 0 : REPLAY_FRAME_RATE);
+        replaySource.setListener(
+                (framesSent, elapsedNanos) ->
+                        Log.i(TAG, "Replay: " + ReplayReport.of(framesSent, elapsedNanos, processor)));
+        replaySource.start();
+    }
+
+    private void stopReplay() {
+        if (replaySource != null) {
+            replaySource.stop();
+            replaySource = null;
+        }
+        if (replayRecording != null) {
+            try {
+                replayRecording.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close the replay recording", e);
+            }
+            replayRecording = null;
+        }
+    }
+
+    /** Returns where diagnostics files are read and written, reachable over adb where possible. */
+    private File getDiagnosticsDirectory() {
+        File directory = getExternalFilesDir(null);
+        return directory != null ? directory : getFilesDir();
+    }
+
+    /** Appends this session's latency percentiles to a CSV file for analysis after the shift. */
+    private void dumpPipelineMetrics() {
+        if (barcodeProcessor.getMetrics().getHistogram(PipelineMetrics.Stage.DETECT).getCount() == 0) {
+            return;
+        }
+        String rows = barcodeProcessor.getMetrics().toCsv(String.valueOf(System.currentTimeMillis()));
+        File file = new File(getDiagnosticsDirectory(), PIPELINE_METRICS_FILE_NAME);
+        appExecutor.ioThread().execute(() -> {
+            try {
+                PipelineMetrics.appendCsv(file, rows);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write " + file, e);
+            }
+        });
     }
 
     @Override
@@ -111,6 +277,10 @@ public class TestActivity extends DaggerAppCompatActivity implements
             cameraSource.release();
             cameraSource = null;
         }
+        if (barcodeProcessor != null) {
+            barcodeProcessor.stop();
+            barcodeProcessor = null;
+        }
     }
 
     private boolean isCameraPermissionGranted() {
@@ -146,8 +316,8 @@ public class TestActivity extends DaggerAppCompatActivity implements
                 .setImageQueueDepth(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
                 .build();
 
-        CodeAnalyzer codeAnalyzer = new CodeAnalyzer(this, appExecutor.detectorThread(), workflowModel);
-        imageAnalysis.setAnalyzer(appExecutor.analyzerThread(), codeAnalyzer);
+        imageAnalysis.setAnalyzer(appExecutor.analyzerThread(),
+                new CodeAnalyzer(graphicOverlay, barcodeProcessor));
 
         cameraProvider.unbindAll();
         CameraSelector cameraSelector = new CameraSelector.Builder()
@@ -207,7 +377,7 @@ public class TestActivity extends DaggerAppCompatActivity implements
     }
 
     private void startCameraPreview() {
-        if (!workflowModel.isCameraLive() && camera != null) {
+        if (!workflowModel.isCameraLive() && cameraSource != null) {
             workflowModel.markCameraLive();
         }
     }
@@ -247,6 +417,12 @@ public class TestActivity extends DaggerAppCompatActivity implements
                             promptChip.setText(R.string.prompt_move_camera_closer);
                             startCameraPreview();
                             break;
+                        case CONFIRMED:
+                            // Only reached in continuous scanning, which keeps the camera live.
+                            promptChip.setVisibility(View.VISIBLE);
+                            promptChip.setText(R.string.prompt_scanned);
+                            startCameraPreview();
+                            break;
                         case SEARCHING:
                             promptChip.setVisibility(View.VISIBLE);
                             promptChip.setText(R.string.prompt_searching);
@@ -269,12 +445,34 @@ public class TestActivity extends DaggerAppCompatActivity implements
                     }
                 });
 
+        workflowModel.scannedBarcodes.observe(this, scannedBarcodeAdapter::submitList);
+
+        workflowModel.pickListProgress.observe(
+                this,
+                progress -> {
+                    if (progress == null) {
+                        pickListChip.setVisibility(View.GONE);
+                        return;
+                    }
+                    pickListChip.setVisibility(View.VISIBLE);
+                    pickListChip.setText(getString(
+                            R.string.pick_list_progress,
+                            progress.scannedCount,
+                            progress.expectedCount,
+                            progress.unexpectedCount,
+                            progress.duplicateCount));
+                });
+
         workflowModel.detectedBarcode.observe(
                 this,
                 barcode -> {
                     if (barcode != null) {
                         ArrayList<BarcodeField> barcodeFieldList = new ArrayList<>();
                         barcodeFieldList.add(new BarcodeField("Raw Value", barcode.getRawValue()));
+                        List<BarcodeField> assetFields = workflowModel.assetFields.getValue();
+                        if (assetFields != null) {
+                            barcodeFieldList.addAll(assetFields);
+                        }
                         BarcodeResultFragment.show(getSupportFragmentManager(), barcodeFieldList);
                     }
                 });
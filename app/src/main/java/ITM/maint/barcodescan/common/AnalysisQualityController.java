@@ -0,0 +1,250 @@
+package ITM.maint.barcodescan.common;
+
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import ITM.maint.barcodescan.perf.LatencyHistogram;
+import ITM.maint.barcodescan.perf.PipelineMetrics;
+import ITM.maint.barcodescan.perf.PipelineMetrics.Stage;
+
+/**
+ * Steps the analysis stream up or down a ladder of {@link Level levels}, from the cheapest (the
+ * smallest size at the lowest frame rate) to the most detailed, so that the detector keeps up
+ * with the camera on slow and fast devices alike.
+ *
+ * <p>Each {@link #evaluate()} looks at the frames since the previous one. The level steps down
+ * after {@link #WINDOWS_TO_STEP_DOWN} windows in a row where the mean detector latency exceeded
+ * the frame period or too many frames were dropped. It steps up only after {@link
+ * #WINDOWS_TO_STEP_UP} windows in a row where the next level's latency, extrapolated by its pixel
+ * count, would still leave headroom. The gap between the two conditions keeps the level from
+ * oscillating.
+ */
+public class AnalysisQualityController {
+
+    private static final String TAG = "AnalysisQuality";
+
+    private static final int WINDOWS_TO_STEP_DOWN = 2;
+    private static final int WINDOWS_TO_STEP_UP = 5;
+    // Windows with fewer decoded frames say too little about latency to act on.
+    private static final int MIN_FRAMES_PER_WINDOW = 5;
+    private static final float OVERLOADED_DROP_RATIO = 0.3f;
+    private static final float UNDERLOADED_DROP_RATIO = 0.1f;
+    // The share of the next level's frame period its extrapolated latency may use.
+    private static final float STEP_UP_HEADROOM = 0.7f;
+
+    /** An analysis stream configuration. Immutable. */
+    public static final class Level {
+        public final Size analysisSize;
+        // Null if the camera does not report target frame rate ranges.
+        @Nullable public final Range<Integer> fpsRange;
+
+        public Level(Size analysisSize, @Nullable Range<Integer> fpsRange) {
+            this.analysisSize = analysisSize;
+            this.fpsRange = fpsRange;
+        }
+
+        /** Returns the time between frames at the level's highest frame rate. */
+        long getFramePeriodNanos(float defaultFps) {
+            float fps = fpsRange != null ? fpsRange.getUpper() : defaultFps;
+            return (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+        }
+
+        long getPixelCount() {
+            return (long) analysisSize.getWidth() * analysisSize.getHeight();
+        }
+
+        @Override
+        public String toString() {
+            return analysisSize + "@" + fpsRange;
+        }
+    }
+
+    /** Told when the level changes. Called on the thread that called {@link #evaluate()}. */
+    public interface Listener {
+        void onLevelChanged(Level level);
+    }
+
+    private final List<Level> levels;
+    private final float defaultFps;
+    private final PipelineMetrics metrics;
+    private final FrameGate frameGate;
+    private final Listener listener;
+    private int levelIndex;
+
+    private int overloadedWindows;
+    private int underloadedWindows;
+    // Counters at the start of the current window; negative until the first evaluation.
+    private long lastDetectCount = -1;
+    private double lastDetectTotalMillis;
+    private long lastProcessedCount;
+    private long lastDroppedCount;
+
+    /**
+     * Creates a controller starting at {@code levels[initialIndex]}. {@code defaultFps} stands in
+     * for levels without a frame rate range.
+     */
+    public AnalysisQualityController(
+            List<Level> levels,
+            int initialIndex,
+            float defaultFps,
+            PipelineMetrics metrics,
+            FrameGate frameGate,
+            Listener listener) {
+        if (levels.isEmpty()) {
+            throw new IllegalArgumentException("At least one level is needed");
+        }
+        this.levels = new ArrayList<>(levels);
+        this.levelIndex = Math.max(0, Math.min(initialIndex, levels.size() - 1));
+        this.defaultFps = defaultFps;
+        this.metrics = metrics;
+        this.frameGate = frameGate;
+        this.listener = listener;
+    }
+
+    /**
+     * Builds the ladder: every YUV size with the aspect ratio of {@code aspectRatio} that fits
+     * between the size bounds, at {@code maxFps}, preceded by the smallest of them at each lower
+     * frame rate down to {@code minFps}. Frame rates are the upper bounds of the camera's target
+     * ranges; for each, the range with the highest lower bound is used, so the rate stays steady.
+     */
+    public static List<Level> buildLevels(
+            Size[] sizes,
+            @Nullable Range<Integer>[] fpsRanges,
+            Size aspectRatio,
+            int minWidth,
+            int maxWidth,
+            int maxHeight,
+            int minFps,
+            int maxFps) {
+        List<Size> ladderSizes = new ArrayList<>();
+        for (Size size : sizes) {
+            if (size.getWidth() >= minWidth
+                    && size.getWidth() <= maxWidth
+                    && size.getHeight() <= maxHeight
+                    && (long) size.getWidth() * aspectRatio.getHeight()
+                            == (long) size.getHeight() * aspectRatio.getWidth()
+                    && !ladderSizes.contains(size)) {
+                ladderSizes.add(size);
+            }
+        }
+        if (ladderSizes.isEmpty()) {
+            ladderSizes.add(aspectRatio);
+        }
+        Collections.sort(ladderSizes, new CameraSource.CompareSizesByArea());
+
+        // The best range for each frame rate, slowest first.
+        List<Range<Integer>> rateRanges = new ArrayList<>();
+        if (fpsRanges != null) {
+            for (Range<Integer> range : fpsRanges) {
+                int upper = range.getUpper();
+                if (upper < minFps || upper > maxFps) {
+                    continue;
+                }
+                int i = 0;
+                while (i < rateRanges.size() && rateRanges.get(i).getUpper() < upper) {
+                    i++;
+                }
+                if (i == rateRanges.size() || rateRanges.get(i).getUpper() != upper) {
+                    rateRanges.add(i, range);
+                } else if (range.getLower() > rateRanges.get(i).getLower()) {
+                    rateRanges.set(i, range);
+                }
+            }
+        }
+
+        List<Level> levels = new ArrayList<>();
+        Range<Integer> fastest = rateRanges.isEmpty() ? null : rateRanges.get(rateRanges.size() - 1);
+        for (int i = 0; i < rateRanges.size() - 1; i++) {
+            levels.add(new Level(ladderSizes.get(0), rateRanges.get(i)));
+        }
+        for (Size size : ladderSizes) {
+            levels.add(new Level(size, fastest));
+        }
+        return levels;
+    }
+
+    /**
+     * Returns the index of the most detailed level no larger than {@code size} and no faster than
+     * {@code maxFps}, or 0 if there is none.
+     */
+    public static int indexOf(List<Level> levels, Size size, int maxFps) {
+        long pixels = (long) size.getWidth() * size.getHeight();
+        int index = 0;
+        for (int i = 0; i < levels.size(); i++) {
+            Level level = levels.get(i);
+            if (level.getPixelCount() <= pixels
+                    && (level.fpsRange == null || level.fpsRange.getUpper() <= maxFps)) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    public Level getLevel() {
+        return levels.get(levelIndex);
+    }
+
+    /** Judges the frames since the last call and changes the level if they call for it. */
+    public void evaluate() {
+        LatencyHistogram detect = metrics.getHistogram(Stage.DETECT);
+        long detectCount = detect.getCount();
+        double detectTotalMillis = detect.getMeanMillis() * detectCount;
+        long processedCount = frameGate.getProcessedFrameCount();
+        long droppedCount = frameGate.getDroppedFrameCount();
+
+        long decoded = detectCount - lastDetectCount;
+        double windowTotalMillis = detectTotalMillis - lastDetectTotalMillis;
+        long processed = processedCount - lastProcessedCount;
+        long dropped = droppedCount - lastDroppedCount;
+        boolean hasBaseline = lastDetectCount >= 0;
+        lastDetectCount = detectCount;
+        lastDetectTotalMillis = detectTotalMillis;
+        lastProcessedCount = processedCount;
+        lastDroppedCount = droppedCount;
+        // Without a baseline, or with counters reset under us, the window means nothing.
+        if (!hasBaseline || decoded < MIN_FRAMES_PER_WINDOW || processed < 0 || dropped < 0) {
+            return;
+        }
+
+        Level level = getLevel();
+        long latencyNanos = (long) (TimeUnit.MILLISECONDS.toNanos(1) * windowTotalMillis / decoded);
+        float dropRatio = (float) dropped / Math.max(1, processed + dropped);
+        boolean overloaded = latencyNanos > level.getFramePeriodNanos(defaultFps)
+                || dropRatio > OVERLOADED_DROP_RATIO;
+        boolean underloaded = false;
+        if (!overloaded && levelIndex + 1 < levels.size() && dropRatio < UNDERLOADED_DROP_RATIO) {
+            Level next = levels.get(levelIndex + 1);
+            double predictedNanos =
+                    latencyNanos * (double) next.getPixelCount() / level.getPixelCount();
+            underloaded = predictedNanos < STEP_UP_HEADROOM * next.getFramePeriodNanos(defaultFps);
+        }
+        overloadedWindows = overloaded ? overloadedWindows + 1 : 0;
+        underloadedWindows = underloaded ? underloadedWindows + 1 : 0;
+
+        if (overloadedWindows >= WINDOWS_TO_STEP_DOWN && levelIndex > 0) {
+            setLevelIndex(levelIndex - 1, latencyNanos, dropRatio);
+        } else if (underloadedWindows >= WINDOWS_TO_STEP_UP) {
+            setLevelIndex(levelIndex + 1, latencyNanos, dropRatio);
+        }
+    }
+
+    private void setLevelIndex(int index, long latencyNanos, float dropRatio) {
+        Log.d(TAG, String.format(Locale.US, "%s -> %s (detect %.1f ms, %.0f%% dropped)",
+                getLevel(), levels.get(index), latencyNanos / 1e6, dropRatio * 100));
+        levelIndex = index;
+        overloadedWindows = 0;
+        underloadedWindows = 0;
+        // The first window after a change includes the stream restarting; start over.
+        lastDetectCount = -1;
+        listener.onLevelChanged(levels.get(index));
+    }
+}
@@ -0,0 +1,69 @@
+package ITM.maint.barcodescan.common;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.firebase.ml.vision.FirebaseVision;
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetector;
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetectorOptions;
+
+import java.io.IOException;
+
+/**
+ * Owns the barcode detectors used by a camera session. One {@link FirebaseVisionBarcodeDetector}
+ * is created per distinct set of {@link FirebaseVisionBarcodeDetectorOptions} when the session
+ * starts, shared by every frame of the session, and closed in {@link #stop()}. Starting again with
+ * equal options reuses the current detector, so it is only rebuilt when the options change.
+ */
+public class BarcodeDetectorManager {
+
+    private static final String TAG = "BarcodeDetectorManager";
+
+    @Nullable
+    private FirebaseVisionBarcodeDetectorOptions activeOptions;
+
+    @Nullable
+    private FirebaseVisionBarcodeDetector activeDetector;
+
+    /** Returns the options used when the caller has no format restrictions. */
+    public static FirebaseVisionBarcodeDetectorOptions defaultOptions() {
+        return new FirebaseVisionBarcodeDetectorOptions.Builder()
+                .setBarcodeFormats(FirebaseVisionBarcode.FORMAT_ALL_FORMATS)
+                .build();
+    }
+
+    /**
+     * Makes the detector for {@code options} the active one. The current detector is kept if its
+     * options are equal, otherwise it is closed and a new one is built.
+     */
+    public synchronized FirebaseVisionBarcodeDetector start(FirebaseVisionBarcodeDetectorOptions options) {
+        if (activeDetector != null && options.equals(activeOptions)) {
+            return activeDetector;
+        }
+        stop();
+        activeDetector = FirebaseVision.getInstance().getVisionBarcodeDetector(options);
+        activeOptions = options;
+        return activeDetector;
+    }
+
+    /** Returns the detector shared by the current session, or null if the session is stopped. */
+    @Nullable
+    public synchronized FirebaseVisionBarcodeDetector getDetector() {
+        return activeDetector;
+    }
+
+    /** Closes the active detector and releases its native resources. */
+    public synchronized void stop() {
+        if (activeDetector != null) {
+            try {
+                activeDetector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close barcode detector!", e);
+            }
+        }
+        activeDetector = null;
+        activeOptions = null;
+    }
+}
@@ -0,0 +1,267 @@
+package ITM.maint.barcodescan.common;
+
+import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import ITM.maint.barcodescan.common.ReticleCropper.CroppedFrame;
+import ITM.maint.barcodescan.decoder.DecodedBarcode;
+
+/**
+ * Follows barcodes across frames and gives each one a stable ID. A detection joins an existing
+ * track when it has the same value and its box overlaps the track's last box; otherwise it starts
+ * a new track. Tracks that go unseen for a few frames are dropped.
+ *
+ * <p>Once every code in view has been seen on enough frames, the tracker keeps a coarse luma
+ * fingerprint of the frame. While later frames match that fingerprint, i.e. nothing in the reticle
+ * moved, {@link #lookup} answers with the last detections so the frame is never sent to the
+ * detector. A real decode is still forced every {@link #MAX_REUSED_FRAMES} frames.
+ */
+public class BarcodeTracker {
+
+    // Frames a code has to be decoded on before its result may be reused.
+    private static final int MIN_HITS_TO_REUSE = 3;
+    // Frames a track may go unseen before it is dropped.
+    private static final int MAX_MISSES = 2;
+    // Consecutive frames answered from the cache before the detector has to confirm again.
+    public static final int MAX_REUSED_FRAMES = 10;
+    private static final float MIN_OVERLAP = 0.3f;
+
+    // The fingerprint samples the luma plane on a SIGNATURE_GRID x SIGNATURE_GRID grid.
+    private static final int SIGNATURE_GRID = 16;
+    // Mean absolute luma difference, out of 255, below which two frames count as the same scene.
+    private static final int MAX_SIGNATURE_DIFFERENCE = 6;
+
+    /** A barcode followed across frames. */
+    public static class Track {
+        private final int id;
+        private DecodedBarcode barcode;
+        private int hitCount;
+        private int missCount;
+
+        Track(int id, DecodedBarcode barcode) {
+            this.id = id;
+            this.barcode = barcode;
+            this.hitCount = 1;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /** Returns the latest detection of this code. */
+        public DecodedBarcode getBarcode() {
+            return barcode;
+        }
+
+        /** Returns how many frames this code has been decoded on. */
+        public int getHitCount() {
+            return hitCount;
+        }
+    }
+
+    private final List<Track> tracks = new ArrayList<>();
+    private int nextTrackId;
+
+    @Nullable private byte[] referenceSignature;
+    @Nullable private List<DecodedBarcode> cachedDetections;
+    private int reusedStreak;
+    private long reusedFrameCount;
+
+    /**
+     * Returns the detections of the last decoded frame if {@code frame} shows the same, already
+     * confirmed, codes without movement. Returns null if the frame has to go to the detector.
+     */
+    @Nullable
+    public synchronized List<DecodedBarcode> lookup(CroppedFrame frame) {
+        if (cachedDetections == null
+                || referenceSignature == null
+                || reusedStreak >= MAX_REUSED_FRAMES) {
+            return null;
+        }
+        if (!matchesSignature(frame, referenceSignature)) {
+            // The scene changed, so the cached answer is stale until the detector sees it again.
+            cachedDetections = null;
+            return null;
+        }
+        reusedStreak++;
+        reusedFrameCount++;
+        return cachedDetections;
+    }
+
+    /**
+     * Associates the detections of a decoded frame with the current tracks. {@code signature} is
+     * the frame's {@link #signatureOf fingerprint}, taken before it went to the detector.
+     */
+    public synchronized void update(
+            List<DecodedBarcode> detections, @Nullable byte[] signature) {
+        for (Track track : tracks) {
+            track.missCount++;
+        }
+        boolean allConfirmed = !detections.isEmpty();
+        for (DecodedBarcode detection : detections) {
+            Track track = findTrack(detection);
+            if (track == null) {
+                track = new Track(nextTrackId++, detection);
+                tracks.add(track);
+            } else {
+                track.barcode = detection;
+                track.hitCount++;
+                track.missCount = 0;
+            }
+            allConfirmed &= track.hitCount >= MIN_HITS_TO_REUSE;
+        }
+        for (Iterator<Track> iterator = tracks.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().missCount > MAX_MISSES) {
+                iterator.remove();
+            }
+        }
+
+        reusedStreak = 0;
+        if (allConfirmed && signature != null) {
+            referenceSignature = signature;
+            cachedDetections = Collections.unmodifiableList(new ArrayList<>(detections));
+        } else {
+            referenceSignature = null;
+            cachedDetections = null;
+        }
+    }
+
+    /** Returns the track {@code barcode} was assigned to, or null if it is not tracked. */
+    @Nullable
+    public synchronized Track getTrack(DecodedBarcode barcode) {
+        for (Track track : tracks) {
+            if (track.barcode == barcode) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /** Returns a copy of the current tracks. */
+    public synchronized List<Track> getTracks() {
+        return new ArrayList<>(tracks);
+    }
+
+    /** Returns how many frames were answered from the cache instead of the detector. */
+    public synchronized long getReusedFrameCount() {
+        return reusedFrameCount;
+    }
+
+    /** Forgets every track, e.g. when the camera session restarts. */
+    public synchronized void reset() {
+        tracks.clear();
+        referenceSignature = null;
+        cachedDetections = null;
+        reusedStreak = 0;
+        reusedFrameCount = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "tracks=" + tracks.size() + ", reused=" + reusedFrameCount;
+    }
+
+    /**
+     * Returns a coarse fingerprint of the frame's luma plane, or null if the frame is not backed by
+     * an NV21 buffer.
+     */
+    @Nullable
+    public static byte[] signatureOf(CroppedFrame frame) {
+        ByteBuffer buffer = frame.getBuffer();
+        FrameMetadata metadata = frame.getBufferMetadata();
+        if (buffer == null || metadata == null || !buffer.hasArray()) {
+            return null;
+        }
+        byte[] signature = new byte[SIGNATURE_GRID * SIGNATURE_GRID];
+        byte[] data = buffer.array();
+        int offset = buffer.arrayOffset();
+        int width = metadata.getWidth();
+        int height = metadata.getHeight();
+        int i = 0;
+        for (int gridY = 0; gridY < SIGNATURE_GRID; gridY++) {
+            int rowStart = offset + sampleCoordinate(gridY, height) * width;
+            for (int gridX = 0; gridX < SIGNATURE_GRID; gridX++) {
+                signature[i++] = data[rowStart + sampleCoordinate(gridX, width)];
+            }
+        }
+        return signature;
+    }
+
+    private static boolean matchesSignature(CroppedFrame frame, byte[] reference) {
+        ByteBuffer buffer = frame.getBuffer();
+        FrameMetadata metadata = frame.getBufferMetadata();
+        if (buffer == null || metadata == null || !buffer.hasArray()) {
+            return false;
+        }
+        byte[] data = buffer.array();
+        int offset = buffer.arrayOffset();
+        int width = metadata.getWidth();
+        int height = metadata.getHeight();
+        int maxTotal = MAX_SIGNATURE_DIFFERENCE * reference.length;
+        int total = 0;
+        int i = 0;
+        for (int gridY = 0; gridY < SIGNATURE_GRID; gridY++) {
+            int rowStart = offset + sampleCoordinate(gridY, height) * width;
+            for (int gridX = 0; gridX < SIGNATURE_GRID; gridX++) {
+                total += Math.abs((data[rowStart + sampleCoordinate(gridX, width)] & 0xff)
+                        - (reference[i++] & 0xff));
+                if (total > maxTotal) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Returns the pixel coordinate of a grid cell's centre along an axis of {@code size} pixels. */
+    private static int sampleCoordinate(int cell, int size) {
+        return (2 * cell + 1) * size / (2 * SIGNATURE_GRID);
+    }
+
+    @Nullable
+    private Track findTrack(DecodedBarcode detection) {
+        Track bestTrack = null;
+        float bestOverlap = MIN_OVERLAP;
+        for (Track track : tracks) {
+            if (track.missCount == 0
+                    || !equalValues(track.barcode.getRawValue(), detection.getRawValue())) {
+                // Already matched on this frame, or a different code.
+                continue;
+            }
+            float overlap =
+                    intersectionOverUnion(track.barcode.getBoundingBox(), detection.getBoundingBox());
+            if (overlap >= bestOverlap) {
+                bestTrack = track;
+                bestOverlap = overlap;
+            }
+        }
+        return bestTrack;
+    }
+
+    private static boolean equalValues(@Nullable String a, @Nullable String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static float intersectionOverUnion(@Nullable Rect a, @Nullable Rect b) {
+        if (a == null || b == null) {
+            return 0;
+        }
+        int left = Math.max(a.left, b.left);
+        int top = Math.max(a.top, b.top);
+        int right = Math.min(a.right, b.right);
+        int bottom = Math.min(a.bottom, b.bottom);
+        if (right <= left || bottom <= top) {
+            return 0;
+        }
+        float intersection = (float) (right - left) * (bottom - top);
+        float union = (float) a.width() * a.height() + (float) b.width() * b.height() - intersection;
+        return intersection / union;
+    }
+}
@@ -1,73 +1,125 @@
 package ITM.maint.barcodescan.common;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
-import android.graphics.Matrix;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
-import android.hardware.Camera.CameraInfo;
+import android.media.Image;
 import androidx.annotation.Nullable;
 import android.util.Log;
-import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
-import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 
 /** Utils functions for bitmap conversions. */
 public class BitmapUtils {
 
-    // Convert NV21 format byte buffer to bitmap.
+    // Conversion buffers are reused per thread, so each thread gets its own converter.
+    private static final ThreadLocal<YuvToRgbConverter> converters =
+            new ThreadLocal<YuvToRgbConverter>() {
+                @Override
+                protected YuvToRgbConverter initialValue() {
+                    return new YuvToRgbConverter();
+                }
+            };
+    // Per thread too, rebuilt if a caller on that thread switches to another pool.
+    private static final ThreadLocal<YuvToRgbConverter> pooledConverters = new ThreadLocal<>();
+
+    /**
+     * Converts an NV21 format byte buffer to an upright bitmap. The bitmap is reused by the next
+     * conversion on the same thread, so copy it if it has to outlive that call.
+     */
     @Nullable
     public static Bitmap getBitmap(ByteBuffer data, FrameMetadata metadata) {
-        data.rewind();
-        byte[] imageInBuffer = new byte[data.limit()];
-        data.get(imageInBuffer, 0, imageInBuffer.length);
         try {
-            YuvImage image =
-                    new YuvImage(
-                            imageInBuffer, ImageFormat.NV21, metadata.getWidth(), metadata.getHeight(), null);
-            if (image != null) {
-                ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                image.compressToJpeg(new Rect(0, 0, metadata.getWidth(), metadata.getHeight()), 80, stream);
+            return converters.get().convert(data, metadata);
+        } catch (Exception e) {
+            Log.e("VisionProcessorBase", "Error: " + e.getMessage());
+        }
+        return null;
+    }
 
-                Bitmap bmp = BitmapFactory.decodeByteArray(stream.toByteArray(), 0, stream.size());
+    /**
+     * Converts a YUV_420_888 image to an upright bitmap. The bitmap is reused by the next
+     * conversion on the same thread, so copy it if it has to outlive that call.
+     */
+    @Nullable
+    public static Bitmap getBitmap(Image image, FrameMetadata metadata) {
+        try {
+            return converters.get().convert(image, metadata);
+        } catch (Exception e) {
+            Log.e("VisionProcessorBase", "Error: " + e.getMessage());
+        }
+        return null;
+    }
 
-                stream.close();
-                return rotateBitmap(bmp, metadata.getRotation(), metadata.getCameraFacing());
-            }
+    /**
+     * Converts an NV21 format byte buffer to an upright bitmap leased from {@code bufferPool}.
+     * Return it with {@link FrameBufferPool#release(Bitmap)}, or draw it with a {@link
+     * CameraImageGraphic} built with the same pool, which returns it once removed.
+     */
+    @Nullable
+    public static Bitmap getBitmap(
+            ByteBuffer data, FrameMetadata metadata, FrameBufferPool bufferPool) {
+        try {
+            return getPooledConverter(bufferPool).convert(data, metadata);
         } catch (Exception e) {
             Log.e("VisionProcessorBase", "Error: " + e.getMessage());
         }
         return null;
     }
 
-    // Rotates a bitmap if it is converted from a bytebuffer.
-    private static Bitmap rotateBitmap(Bitmap bitmap, int rotation, int facing) {
-        Matrix matrix = new Matrix();
-        int rotationDegree = 0;
-        switch (rotation) {
-            case FirebaseVisionImageMetadata.ROTATION_90:
-                rotationDegree = 90;
-                break;
-            case FirebaseVisionImageMetadata.ROTATION_180:
-                rotationDegree = 180;
-                break;
-            case FirebaseVisionImageMetadata.ROTATION_270:
-                rotationDegree = 270;
-                break;
-            default:
-                break;
+    /**
+     * Converts a YUV_420_888 image to an upright bitmap leased from {@code bufferPool}. Return it
+     * as for {@link #getBitmap(ByteBuffer, FrameMetadata, FrameBufferPool)}.
+     */
+    @Nullable
+    public static Bitmap getBitmap(
+            Image image, FrameMetadata metadata, FrameBufferPool bufferPool) {
+        try {
+            return getPooledConverter(bufferPool).convert(image, metadata);
+        } catch (Exception e) {
+            Log.e("VisionProcessorBase", "Error: " + e.getMessage());
         }
+        return null;
+    }
 
-        // Rotate the image back to straight.}
-        matrix.postRotate(rotationDegree);
-        if (facing == CameraInfo.CAMERA_FACING_BACK) {
-            return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-        } else {
-            // Mirror the image along X axis for front-facing camera image.
-            matrix.postScale(-1.0f, 1.0f);
-            return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    private static YuvToRgbConverter getPooledConverter(FrameBufferPool bufferPool) {
+        YuvToRgbConverter converter = pooledConverters.get();
+        if (converter == null || !converter.leasesFrom(bufferPool)) {
+            converter = new YuvToRgbConverter(bufferPool);
+            pooledConverters.set(converter);
         }
+        return converter;
     }
-}
 
+    /**
+     * Copies {@code region} of a YUV_420_888 {@link Image} into {@code nv21} as NV21. The region
+     * must have even bounds and {@code nv21} must hold {@code width * height * 3 / 2} bytes.
+     */
+    public static void copyToNv21(Image image, Rect region, byte[] nv21) {
+        Image.Plane[] planes = image.getPlanes();
+        int width = region.width();
+
+        // The Y plane always has a pixel stride of 1, so each row is copied in bulk.
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int out = 0;
+        for (int row = region.top; row < region.bottom; row++) {
+            yBuffer.position(row * yRowStride + region.left);
+            yBuffer.get(nv21, out, width);
+            out += width;
+        }
+
+        // U and V share their strides; NV21 interleaves them V first.
+        ByteBuffer uBuffer = planes[1].getBuffer();
+        ByteBuffer vBuffer = planes[2].getBuffer();
+        int uvRowStride = planes[1].getRowStride();
+        int uvPixelStride = planes[1].getPixelStride();
+        for (int row = region.top / 2; row < region.bottom / 2; row++) {
+            int offset = row * uvRowStride + (region.left / 2) * uvPixelStride;
+            for (int col = 0; col < width / 2; col++) {
+                nv21[out++] = vBuffer.get(offset);
+                nv21[out++] = uBuffer.get(offset);
+                offset += uvPixelStride;
+            }
+        }
+        yBuffer.rewind();
+    }
+}
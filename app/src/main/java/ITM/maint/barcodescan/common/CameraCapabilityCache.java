@@ -0,0 +1,252 @@
+package ITM.maint.barcodescan.common;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.concurrent.Executor;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import ITM.maint.barcodescan.AppExecutor;
+import ITM.maint.barcodescan.perf.StartupTimeline;
+import ITM.maint.barcodescan.perf.StartupTimeline.Milestone;
+
+/**
+ * The back camera's characteristics that opening it depends on, queried once per process instead
+ * of on every open. Querying the camera service costs tens of milliseconds per camera, so the
+ * result is also persisted, keyed by the build fingerprint: it only changes with a system update.
+ *
+ * <p>{@link #prefetch()} at application start loads them on the I/O thread, while the first
+ * activity is being inflated.
+ */
+@Singleton
+public class CameraCapabilityCache {
+
+    private static final String TAG = "CameraCapabilityCache";
+
+    private static final String PREFERENCES_NAME = "camera_capabilities";
+    // Bump when the stored fields change, so entries written by older versions are ignored.
+    private static final int FORMAT_VERSION = 1;
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_CAMERA_ID = "camera_id";
+    private static final String KEY_FACING = "facing";
+    private static final String KEY_SENSOR_ORIENTATION = "sensor_orientation";
+    private static final String KEY_ANALYSIS_SIZES = "analysis_sizes";
+    private static final String KEY_PREVIEW_SIZES = "preview_sizes";
+    private static final String KEY_FPS_RANGES = "fps_ranges";
+
+    /** What {@link CameraSource} needs to know about a camera to open it. Immutable. */
+    public static final class Capabilities {
+        public final String cameraId;
+        /** One of {@code CameraCharacteristics.LENS_FACING_*}. */
+        public final int facing;
+        /** Clockwise degrees the sensor image must be rotated to be upright on the device. */
+        public final int sensorOrientation;
+        /** Output sizes of the YUV analysis stream. */
+        public final Size[] analysisSizes;
+        /** Output sizes of the preview's surface texture. */
+        public final Size[] previewSizes;
+        /** Target frame rate ranges, or null if the camera does not report them. */
+        @Nullable public final Range<Integer>[] fpsRanges;
+
+        Capabilities(
+                String cameraId,
+                int facing,
+                int sensorOrientation,
+                Size[] analysisSizes,
+                Size[] previewSizes,
+                @Nullable Range<Integer>[] fpsRanges) {
+            this.cameraId = cameraId;
+            this.facing = facing;
+            this.sensorOrientation = sensorOrientation;
+            this.analysisSizes = analysisSizes;
+            this.previewSizes = previewSizes;
+            this.fpsRanges = fpsRanges;
+        }
+    }
+
+    private final Context context;
+    private final Executor ioExecutor;
+
+    // Guarded by this.
+    @Nullable private Capabilities capabilities;
+    private boolean loaded;
+
+    @Inject
+    public CameraCapabilityCache(Context context, AppExecutor appExecutor) {
+        this.context = context;
+        this.ioExecutor = appExecutor.ioThread();
+    }
+
+    /** Starts loading the capabilities on the I/O thread, so {@link #get()} finds them ready. */
+    public void prefetch() {
+        ioExecutor.execute(this::get);
+    }
+
+    /**
+     * Returns the back camera's capabilities, or null if the device has no usable back camera.
+     * The first call loads them, from storage or the camera service; calls made meanwhile wait
+     * for it.
+     */
+    @Nullable
+    public synchronized Capabilities get() {
+        if (loaded) {
+            return capabilities;
+        }
+        Trace.beginSection("CameraCapabilityCache.load");
+        try {
+            SharedPreferences preferences =
+                    context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+            capabilities = read(preferences);
+            if (capabilities == null) {
+                capabilities = query();
+                if (capabilities != null) {
+                    write(preferences, capabilities);
+                }
+            }
+            loaded = true;
+        } finally {
+            Trace.endSection();
+        }
+        StartupTimeline.mark(Milestone.CAPABILITIES_LOADED);
+        return capabilities;
+    }
+
+    /**
+     * Forgets the capabilities, here and in storage, e.g. when the cached camera id turns out to
+     * be gone. The next {@link #get()} queries the camera service again.
+     */
+    public synchronized void invalidate() {
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+        capabilities = null;
+        loaded = false;
+    }
+
+    /** Returns the first camera not facing the front that has stream configurations. */
+    @WorkerThread
+    @Nullable
+    private Capabilities query() {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            for (String id : manager.getCameraIdList()) {
+                CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) {
+                    continue;
+                }
+                StreamConfigurationMap map =
+                        characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                Integer sensorOrientation =
+                        characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+                if (map == null || sensorOrientation == null) {
+                    continue;
+                }
+                return new Capabilities(
+                        id,
+                        facing != null ? facing : CameraCharacteristics.LENS_FACING_BACK,
+                        sensorOrientation,
+                        map.getOutputSizes(ImageFormat.YUV_420_888),
+                        map.getOutputSizes(SurfaceTexture.class),
+                        characteristics.get(
+                                CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES));
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to query the cameras", e);
+        }
+        return null;
+    }
+
+    @Nullable
+    private static Capabilities read(SharedPreferences preferences) {
+        String cameraId = preferences.getString(KEY_CAMERA_ID, null);
+        if (cameraId == null
+                || !getFingerprint().equals(preferences.getString(KEY_FINGERPRINT, null))) {
+            return null;
+        }
+        try {
+            String fpsRanges = preferences.getString(KEY_FPS_RANGES, "");
+            return new Capabilities(
+                    cameraId,
+                    preferences.getInt(KEY_FACING, CameraCharacteristics.LENS_FACING_BACK),
+                    preferences.getInt(KEY_SENSOR_ORIENTATION, 0),
+                    parseSizes(preferences.getString(KEY_ANALYSIS_SIZES, "")),
+                    parseSizes(preferences.getString(KEY_PREVIEW_SIZES, "")),
+                    fpsRanges.isEmpty() ? null : parseRanges(fpsRanges));
+        } catch (RuntimeException e) {
+            // Written by a broken build or tampered with; query afresh.
+            Log.w(TAG, "Ignoring unreadable camera capabilities", e);
+            return null;
+        }
+    }
+
+    private static void write(SharedPreferences preferences, Capabilities capabilities) {
+        preferences.edit()
+                .clear()
+                .putString(KEY_FINGERPRINT, getFingerprint())
+                .putString(KEY_CAMERA_ID, capabilities.cameraId)
+                .putInt(KEY_FACING, capabilities.facing)
+                .putInt(KEY_SENSOR_ORIENTATION, capabilities.sensorOrientation)
+                .putString(KEY_ANALYSIS_SIZES, join(capabilities.analysisSizes))
+                .putString(KEY_PREVIEW_SIZES, join(capabilities.previewSizes))
+                .putString(KEY_FPS_RANGES,
+                        capabilities.fpsRanges != null ? join(capabilities.fpsRanges) : "")
+                .apply();
+    }
+
+    private static String getFingerprint() {
+        return Build.FINGERPRINT + "/" + FORMAT_VERSION;
+    }
+
+    /** Joins sizes as {@code 640x480;1280x720} and ranges as {@code [15, 30];[30, 30]}. */
+    private static String join(Object[] values) {
+        StringBuilder joined = new StringBuilder();
+        for (Object value : values) {
+            if (joined.length() > 0) {
+                joined.append(';');
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+
+    private static Size[] parseSizes(String joined) {
+        if (joined.isEmpty()) {
+            throw new IllegalArgumentException("No sizes");
+        }
+        String[] values = joined.split(";");
+        Size[] sizes = new Size[values.length];
+        for (int i = 0; i < values.length; i++) {
+            sizes[i] = Size.parseSize(values[i]);
+        }
+        return sizes;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Range<Integer>[] parseRanges(String joined) {
+        String[] values = joined.split(";");
+        Range<Integer>[] ranges = new Range[values.length];
+        for (int i = 0; i < values.length; i++) {
+            // Range.toString() gives "[lower, upper]".
+            String value = values[i].trim();
+            String[] bounds = value.substring(1, value.length() - 1).split(",");
+            ranges[i] = new Range<>(
+                    Integer.parseInt(bounds[0].trim()), Integer.parseInt(bounds[1].trim()));
+        }
+        return ranges;
+    }
+}
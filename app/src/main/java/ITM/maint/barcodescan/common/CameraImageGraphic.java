@@ -4,20 +4,40 @@ package ITM.maint.barcodescan.common;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
 import ITM.maint.barcodescan.common.GraphicOverlay.Graphic;
 
 /** Draw camera image to background. */
 public class CameraImageGraphic extends Graphic {
 
     private final Bitmap bitmap;
+    @Nullable private final FrameBufferPool bufferPool;
+    private final Rect destRect = new Rect();
 
     public CameraImageGraphic(GraphicOverlay overlay, Bitmap bitmap) {
+        this(overlay, bitmap, null);
+    }
+
+    /** Creates a graphic that hands {@code bitmap} back to {@code bufferPool} once removed. */
+    public CameraImageGraphic(
+            GraphicOverlay overlay, Bitmap bitmap, @Nullable FrameBufferPool bufferPool) {
         super(overlay);
         this.bitmap = bitmap;
+        this.bufferPool = bufferPool;
     }
 
     @Override
     public void draw(Canvas canvas) {
-        canvas.drawBitmap(bitmap, null, new Rect(0, 0, canvas.getWidth(), canvas.getHeight()), null);
+        destRect.set(0, 0, canvas.getWidth(), canvas.getHeight());
+        canvas.drawBitmap(bitmap, null, destRect, null);
+    }
+
+    @Override
+    protected void release() {
+        if (bufferPool != null) {
+            bufferPool.release(bitmap);
+        }
     }
 }
\ No newline at end of file
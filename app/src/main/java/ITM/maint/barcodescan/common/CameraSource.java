@@ -17,7 +17,6 @@
 package ITM.maint.barcodescan.common;
 
 import android.Manifest;
-import android.animation.ValueAnimator;
 import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -26,7 +25,6 @@ import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.RectF;
-import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -35,45 +33,36 @@ import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Trace;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.app.ActivityCompat;
 
-import com.google.android.gms.tasks.Task;
-import com.google.firebase.ml.vision.FirebaseVision;
-import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
-import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetector;
-import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetectorOptions;
-import com.google.firebase.ml.vision.common.FirebaseVisionImage;
 import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
-import ITM.maint.barcodescan.BarcodeConfirmingGraphic;
-import ITM.maint.barcodescan.BarcodeLoadingGraphic;
-import ITM.maint.barcodescan.BarcodeReticleGraphic;
 import ITM.maint.barcodescan.R;
-import ITM.maint.barcodescan.common.preferences.PreferenceUtils;
+import ITM.maint.barcodescan.perf.PipelineMetrics;
+import ITM.maint.barcodescan.perf.StartupTimeline;
+import ITM.maint.barcodescan.perf.StartupTimeline.Milestone;
 
 /**
  * Manages the camera and allows UI updates on top of it (e.g. overlaying extra Graphics). This
@@ -83,6 +72,11 @@ import ITM.maint.barcodescan.common.preferences.PreferenceUtils;
  * <p>This camera source makes a best effort to manage processing on preview frames as fast as
  * possible, while at the same time minimizing lag. As such, frames may be dropped if the detector
  * is unable to keep up with the rate of frames generated by the camera.
+ *
+ * <p>To start quickly, the camera device is opened as soon as the source is {@link #start()
+ * started}, while the preview is still being laid out, from {@link CameraCapabilityCache cached}
+ * characteristics. The capture session starts once both the device and the preview surface are
+ * ready, whichever comes last.
  */
 public class CameraSource {
 
@@ -90,13 +84,18 @@ public class CameraSource {
 
   private static final String TAG = "CameraSource";
 
-  private static final int IMAGE_FORMAT = ImageFormat.NV21;
+  private static final int IMAGE_FORMAT = ImageFormat.YUV_420_888;
   private static final int MIN_CAMERA_PREVIEW_WIDTH = 400;
   private static final int MAX_CAMERA_PREVIEW_WIDTH = 1920;
   private static final int MAX_CAMERA_PREVIEW_HEIGHT = 1080;
   private static final int DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH = 640;
   private static final int DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT = 360;
   private static final float REQUESTED_CAMERA_FPS = 30.0f;
+  // The lowest frame rate adaptive quality may fall back to.
+  private static final int MIN_CAMERA_FPS = 15;
+  private static final long QUALITY_EVALUATION_INTERVAL_MS = 1000;
+  // The processor copies each frame out, so only acquireLatestImage()'s minimum of two is needed.
+  private static final int MAX_ANALYSIS_IMAGES = 2;
 
   private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
   static {
@@ -116,29 +115,42 @@ public class CameraSource {
   @FirebaseVisionImageMetadata.Rotation
   private int rotation;
   private Size previewSize;
+  private Size analysisSize;
+  private int requestedAnalysisWidth = DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH;
+  private int requestedAnalysisHeight = DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT;
+  private int requestedFps = (int) REQUESTED_CAMERA_FPS;
+  @Nullable private Range<Integer> fpsRange;
+  private int cameraFacing = CAMERA_FACING_BACK;
+
+  @Nullable private PipelineMetrics adaptiveMetrics;
+  @Nullable private FrameGate adaptiveFrameGate;
+  @Nullable private AnalysisQualityController qualityController;
 
   private final Semaphore processorLock = new Semaphore(1);
   private VisionImageProcessor frameProcessor;
-
-  private final Map<byte[], ByteBuffer> bytesToByteBuffer = new IdentityHashMap<>();
+  private FrameMetadata frameMetadata;
 
   private final Context context;
   private final GraphicOverlay graphicOverlay;
-  private FirebaseVisionBarcodeDetector barcodeDetector;
-  private final CameraReticleAnimator cameraReticleAnimator;
-  private WorkflowModel workflowModel;
+  private final CameraCapabilityCache capabilityCache;
+  // Set on the main thread from opening the device until the camera is closed.
+  private boolean cameraOpenRequested;
+  // Set on the main thread once the outputs are set up for the preview surface; read on the
+  // background thread, which only starts the session after both this and the device are ready.
+  private volatile boolean outputsReady;
   private ImageReader imageReader;
   private Surface surface;
 
   private Handler backgroundHandler;
   private HandlerThread backgroundThread;
+  // Only used on the background thread.
+  private final CaptureStateTracker captureStates = new CaptureStateTracker();
 
   private final CameraCaptureSession.CaptureCallback captureCallback
           = new CameraCaptureSession.CaptureCallback() {
 
     private void process(CaptureResult result) {
-        int name;
-        name = 0;
+      captureStates.onCaptureResult(result);
     }
 
     @Override
@@ -150,14 +162,27 @@ public class CameraSource {
 
   };
 
+  private final Runnable qualityEvaluation = new Runnable() {
+
+    @Override
+    public void run() {
+      AnalysisQualityController controller = qualityController;
+      if (controller != null && cameraCaptureSession != null) {
+        controller.evaluate();
+        backgroundHandler.postDelayed(this, QUALITY_EVALUATION_INTERVAL_MS);
+      }
+    }
+
+  };
+
   private final CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
 
     @Override
     public void onOpened(@NonNull CameraDevice cameraDevice) {
       release();
       camera = cameraDevice;
-      previewView.createCameraPreviewSession(camera, surface);
-      startCameraSession(surface);
+      StartupTimeline.mark(Milestone.CAMERA_OPENED);
+      startSessionIfReady();
     }
 
     @Override
@@ -182,73 +207,52 @@ public class CameraSource {
 
     @Override
     public void onImageAvailable(ImageReader reader) {
-      Image image = reader.acquireNextImage();
-      FirebaseVisionBarcodeDetectorOptions options =
-              new FirebaseVisionBarcodeDetectorOptions.Builder()
-                      .setBarcodeFormats(FirebaseVisionBarcode.FORMAT_ALL_FORMATS)
-                      .build();
-      barcodeDetector = FirebaseVision.getInstance().getVisionBarcodeDetector(options);
-
-      FirebaseVisionImage visionImage = FirebaseVisionImage.fromMediaImage(image, ImageFormat.YUV_420_888 );
-
-      Task<List<FirebaseVisionBarcode>> task;
-      task = barcodeDetector.detectInImage(visionImage);
-      task.addOnSuccessListener( barcodes -> {
-        if (!barcodes.isEmpty()) {
-          FirebaseVisionBarcode barcodeInCenter = null;
-          for (FirebaseVisionBarcode barcode : barcodes) {
-            RectF box = graphicOverlay.translateRect(barcode.getBoundingBox());
-            if (box.contains(graphicOverlay.getWidth() / 2f, graphicOverlay.getHeight() / 2f)) {
-              barcodeInCenter = barcode;
-              break;
-            }
-
-            graphicOverlay.clear();
-            if (barcodeInCenter == null) {
-              cameraReticleAnimator.start();
-              graphicOverlay.add(new BarcodeReticleGraphic(graphicOverlay, cameraReticleAnimator));
-              workflowModel.setWorkflowState(WorkflowModel.WorkflowState.DETECTING);
-            } else {
-              cameraReticleAnimator.cancel();
-              float sizeProgress =
-                      PreferenceUtils.getProgressToMeetBarcodeSizeRequirement(graphicOverlay, barcodeInCenter);
-              if (sizeProgress < 1) {
-                // Barcode in the camera view is too small, so prompt user to move camera closer.
-                graphicOverlay.add(new BarcodeConfirmingGraphic(graphicOverlay, barcodeInCenter));
-                workflowModel.setWorkflowState(WorkflowModel.WorkflowState.CONFIRMING);
-              } else {
-                // Barcode size in the camera view is sufficient.
-                if (PreferenceUtils.shouldDelayLoadingBarcodeResult(graphicOverlay.getContext())) {
-                  ValueAnimator loadingAnimator = createLoadingAnimator(graphicOverlay, barcodeInCenter);
-                  loadingAnimator.start();
-                  graphicOverlay.add(new BarcodeLoadingGraphic(graphicOverlay, loadingAnimator));
-                  workflowModel.setWorkflowState(WorkflowModel.WorkflowState.SEARCHING);
-                } else {
-                  workflowModel.setWorkflowState(WorkflowModel.WorkflowState.DETECTED);
-                  workflowModel.detectedBarcode.setValue(barcodeInCenter);
-                }
-              }
-            }
-            graphicOverlay.invalidate();
-
-          }
+      // Coalesce any frames that queued up while the previous one was being handed over.
+      Image image = reader.acquireLatestImage();
+      if (image == null) {
+        return;
+      }
+      StartupTimeline.mark(Milestone.FIRST_FRAME);
+      if (captureStates.shouldSkip(image.getTimestamp())) {
+        // Focus or exposure was still moving; the frame would only waste a decode.
+        image.close();
+        return;
+      }
+      Trace.beginSection("CameraSource.onImageAvailable");
+      try {
+        VisionImageProcessor processor = frameProcessor;
+        if (processor != null) {
+          processor.process(image, frameMetadata, graphicOverlay);
         }
-      });
+      } finally {
+        image.close();
+        Trace.endSection();
+      }
     }
 
   };
 
 
-  public CameraSource(GraphicOverlay graphicOverlay, WorkflowModel workFlowModel) {
+  public CameraSource(GraphicOverlay graphicOverlay, CameraCapabilityCache capabilityCache) {
     this.context = graphicOverlay.getContext();
     this.graphicOverlay = graphicOverlay;
+    this.capabilityCache = capabilityCache;
     previewView = ((Activity) this.context).findViewById(R.id.camera_preview);
     previewView.attachCamera(this);
-    this.cameraReticleAnimator = new CameraReticleAnimator(graphicOverlay);
-    this.workflowModel = workFlowModel;
   }
 
+  /** Sets the processor that analysis frames are sent to. Frames are dropped while it is null. */
+  public void setFrameProcessor(VisionImageProcessor processor) {
+    frameProcessor = processor;
+  }
+
+  /**
+   * Opens the camera. The preview starts once its surface is available, right away if it already
+   * is.
+   */
   public void start() {
+    startBackgroundThread();
+    openCameraDevice();
     if (previewView.isSurfaceAvailable()){
       openCamera(getPreviewSize().getWidth(), getPreviewSize().getHeight());
     }
@@ -263,6 +267,17 @@ public class CameraSource {
     processorLock.release();
   }
 
+  /**
+   * Lets the analysis size and frame rate follow how fast frames are decoded, judged from
+   * {@code metrics} and {@code frameGate}, or pass nulls to keep the requested ones. Takes effect
+   * the next time the camera is opened.
+   */
+  public void setAdaptiveQuality(
+          @Nullable PipelineMetrics metrics, @Nullable FrameGate frameGate) {
+    adaptiveMetrics = metrics;
+    adaptiveFrameGate = frameGate;
+  }
+
   public Handler getBackgroundHandler() {
     return backgroundHandler;
   }
@@ -280,6 +295,11 @@ public class CameraSource {
   private void closeCamera() {
     try {
       processorLock.acquire();
+      if (backgroundHandler != null) {
+        backgroundHandler.removeCallbacks(qualityEvaluation);
+      }
+      Log.d(TAG, "Frames skipped while focus or exposure settled: "
+              + captureStates.getSkippedFrameCount());
       if (null != camera) {
         camera.close();
         camera = null;
@@ -292,10 +312,9 @@ public class CameraSource {
         cameraCaptureSession.close();
         cameraCaptureSession = null;
       }
-      if (null != cameraCaptureSession) {
-        cameraCaptureSession.close();
-        cameraCaptureSession = null;
-      }
+      surface = null;
+      outputsReady = false;
+      cameraOpenRequested = false;
 
     } catch (InterruptedException e) {
       throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
@@ -305,33 +324,97 @@ public class CameraSource {
 
   }
 
+  /**
+   * Sets up the outputs for a preview surface of {@code width} by {@code height}, opening the
+   * camera if that has not been done yet. Called by the preview once its surface is available.
+   */
   public void openCamera(int width, int height) {
 
-    setUpCameraOutputs(width, height);
+    // The image reader delivers frames on the background thread, so start it before the outputs.
+    startBackgroundThread();
+    openCameraDevice();
+    StartupTimeline.mark(Milestone.PREVIEW_SURFACE_READY);
+    if (!setUpCameraOutputs(width, height)) {
+      return;
+    }
     configureTransform(width, height);
+    outputsReady = true;
+    backgroundHandler.post(this::startSessionIfReady);
+  }
 
+  /** Asks the camera service to open the camera, unless that was already done. */
+  private void openCameraDevice() {
+    if (cameraOpenRequested) {
+      return;
+    }
+    CameraCapabilityCache.Capabilities capabilities = capabilityCache.get();
+    if (capabilities == null) {
+      Log.e(TAG, "No back camera found");
+      return;
+    }
+    if (ActivityCompat.checkSelfPermission(context, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+      return;
+    }
     CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
     try {
       if (!processorLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
         throw new RuntimeException("Time out waiting to lock camera opening.");
       }
-      if (ActivityCompat.checkSelfPermission(context, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-        return;
-      }
-      startBackgroundThread();
+      cameraID = capabilities.cameraId;
       manager.openCamera(cameraID, stateCallback, backgroundHandler);
+      cameraOpenRequested = true;
     } catch (CameraAccessException e) {
+      processorLock.release();
       e.printStackTrace();
+    } catch (IllegalArgumentException e) {
+      // The cached camera is gone, e.g. it was external; look the cameras up again next time.
+      processorLock.release();
+      capabilityCache.invalidate();
+      Log.e(TAG, "Camera " + cameraID + " no longer exists", e);
     } catch (InterruptedException e) {
       throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
     }
   }
 
+  /**
+   * Starts the capture session if the camera is open and the outputs are set up, and no session
+   * was started for them yet. Runs on the background thread, after either becomes ready.
+   */
+  private void startSessionIfReady() {
+    if (!processorLock.tryAcquire()) {
+      // The camera is being opened or closed.
+      return;
+    }
+    try {
+      if (camera == null || !outputsReady || surface != null) {
+        return;
+      }
+      surface = previewView.createCameraPreviewSession(camera, previewSize);
+      startCameraSession(surface);
+    } finally {
+      processorLock.release();
+    }
+  }
+
   /** Returns the preview size that is currently in use by the underlying camera. */
   Size getPreviewSize() {
     return previewSize;
   }
 
+  /** Returns the size of the YUV frames that are sent to the detector. */
+  Size getAnalysisSize() {
+    return analysisSize;
+  }
+
+  /**
+   * Sets the analysis frame size to aim for. The closest size the camera supports is used the
+   * next time the camera is opened.
+   */
+  public void setRequestedAnalysisSize(int width, int height) {
+    requestedAnalysisWidth = width;
+    requestedAnalysisHeight = height;
+  }
+
   static class CompareSizesByArea implements Comparator<Size> {
 
     @Override
@@ -373,96 +456,194 @@ public class CameraSource {
     }
   }
 
-  private void setUpCameraOutputs(int width, int height) {
-    CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
-    try {
-      for (String ID : manager.getCameraIdList()) {
-        CameraCharacteristics characteristics
-                = manager.getCameraCharacteristics(ID);
+  /**
+   * Picks the output size closest to the requested analysis size, ignoring sizes too narrow for
+   * reliable decoding.
+   */
+  private static Size chooseAnalysisSize(Size[] choices, int requestedWidth, int requestedHeight) {
+    Size selectedSize = null;
+    int minDiff = Integer.MAX_VALUE;
+    for (Size option : choices) {
+      if (option.getWidth() < MIN_CAMERA_PREVIEW_WIDTH) {
+        continue;
+      }
+      int diff = Math.abs(option.getWidth() - requestedWidth)
+              + Math.abs(option.getHeight() - requestedHeight);
+      if (diff < minDiff) {
+        selectedSize = option;
+        minDiff = diff;
+      }
+    }
+    return selectedSize != null ? selectedSize : choices[0];
+  }
+
+  /**
+   * Picks the analysis and preview sizes for a preview of {@code width} by {@code height} and
+   * creates the analysis output. Returns false if there is no camera to set up.
+   */
+  private boolean setUpCameraOutputs(int width, int height) {
+    CameraCapabilityCache.Capabilities capabilities = capabilityCache.get();
+    if (capabilities == null) {
+      return false;
+    }
 
-        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-        if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) {
-          continue;
+    int displayRotation = ((Activity)context).getWindowManager().getDefaultDisplay().getRotation();
+    int sensorOrientation = capabilities.sensorOrientation;
+    int displayDegrees = displayRotation * 90;
+    rotation = FrameMetadata.toFirebaseRotation((sensorOrientation - displayDegrees + 360) % 360);
+    cameraFacing = capabilities.facing;
+
+    // Detection runs on a YUV stream sized for decoding rather than on full-sensor frames.
+    Size[] analysisSizes = capabilities.analysisSizes;
+    createAnalysisOutput(
+            chooseAnalysisSize(analysisSizes, requestedAnalysisWidth, requestedAnalysisHeight));
+    setUpQualityLevels(analysisSizes, capabilities.fpsRanges);
+    boolean swappedDimensions = false;
+    switch (displayRotation) {
+      case Surface.ROTATION_0:
+      case Surface.ROTATION_180:
+        if (sensorOrientation == 90 || sensorOrientation == 270) {
+          swappedDimensions = true;
         }
+        break;
+      case Surface.ROTATION_90:
+      case Surface.ROTATION_270:
+        if (sensorOrientation == 0 || sensorOrientation == 180) {
+          swappedDimensions = true;
+        }
+        break;
+    }
 
-        cameraID = ID;
+    Point displaySize = new Point();
+    ((Activity)context).getWindowManager().getDefaultDisplay().getSize(displaySize);
+    int rotatedPreviewWidth = width;
+    int rotatedPreviewHeight = height;
+    int maxPreviewWidth = displaySize.x;
+    int maxPreviewHeight = displaySize.y;
+
+    if (swappedDimensions) {
+      rotatedPreviewWidth = height;
+      rotatedPreviewHeight = width;
+      maxPreviewWidth = displaySize.y;
+      maxPreviewHeight = displaySize.x;
+    }
 
-        StreamConfigurationMap map = characteristics.get(
-                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-        if (map == null) {
-          continue;
-        }
+    if (maxPreviewWidth > MAX_CAMERA_PREVIEW_WIDTH) {
+      maxPreviewWidth = MAX_CAMERA_PREVIEW_WIDTH;
+    }
 
-        List imageSizes = Arrays.asList(map.getOutputSizes(ImageFormat.JPEG));
-        Size largest = Collections.max(imageSizes, new CompareSizesByArea());
-
-        imageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                ImageFormat.JPEG, /*maxImages*/2);
-        imageReader.setOnImageAvailableListener(
-                onImageAvailableListener, backgroundHandler);
-
-        int displayRotation = ((Activity)context).getWindowManager().getDefaultDisplay().getRotation();
-        rotation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-        boolean swappedDimensions = false;
-        switch (displayRotation) {
-          case Surface.ROTATION_0:
-          case Surface.ROTATION_180:
-            if (rotation == 90 || rotation == 270) {
-              swappedDimensions = true;
-            }
-            break;
-          case Surface.ROTATION_90:
-          case Surface.ROTATION_270:
-            if (rotation == 0 || rotation == 180) {
-              swappedDimensions = true;
-            }
-            break;
-        }
+    if (maxPreviewHeight > MAX_CAMERA_PREVIEW_HEIGHT) {
+      maxPreviewHeight = MAX_CAMERA_PREVIEW_HEIGHT;
+    }
 
-        Point displaySize = new Point();
-        ((Activity)context).getWindowManager().getDefaultDisplay().getSize(displaySize);
-        int rotatedPreviewWidth = width;
-        int rotatedPreviewHeight = height;
-        int maxPreviewWidth = displaySize.x;
-        int maxPreviewHeight = displaySize.y;
-
-        if (swappedDimensions) {
-          rotatedPreviewWidth = height;
-          rotatedPreviewHeight = width;
-          maxPreviewWidth = displaySize.y;
-          maxPreviewHeight = displaySize.x;
-        }
+    previewSize = chooseOptimalSize(capabilities.previewSizes,
+            rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
+            maxPreviewHeight, analysisSize);
 
-        if (maxPreviewWidth > MAX_CAMERA_PREVIEW_WIDTH) {
-          maxPreviewWidth = MAX_CAMERA_PREVIEW_WIDTH;
-        }
+    int orientation = context.getResources().getConfiguration().orientation;
+    if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+      previewView.setAspectRatio(
+              previewView.getWidth(), previewSize.getHeight());
+    } else {
+      previewView.setAspectRatio(
+              previewSize.getHeight(), previewSize.getWidth());
+    }
+    graphicOverlay.setCameraInfo(this);
+    return true;
+  }
 
-        if (maxPreviewHeight > MAX_CAMERA_PREVIEW_HEIGHT) {
-          maxPreviewHeight = MAX_CAMERA_PREVIEW_HEIGHT;
-        }
 
-        previewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
-                maxPreviewHeight, largest);
+  /** Creates the image reader that analysis frames of {@code size} are delivered through. */
+  private void createAnalysisOutput(Size size) {
+    analysisSize = size;
+    imageReader = ImageReader.newInstance(analysisSize.getWidth(), analysisSize.getHeight(),
+            IMAGE_FORMAT, MAX_ANALYSIS_IMAGES);
+    imageReader.setOnImageAvailableListener(
+            onImageAvailableListener, backgroundHandler);
+    frameMetadata = new FrameMetadata.Builder()
+            .setWidth(analysisSize.getWidth())
+            .setHeight(analysisSize.getHeight())
+            .setRotation(rotation)
+            .setCameraFacing(cameraFacing)
+            .setFormat(IMAGE_FORMAT)
+            .build();
+  }
 
-        int orientation = context.getResources().getConfiguration().orientation;
-        if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-          previewView.setAspectRatio(
-                  previewView.getWidth(), previewSize.getHeight());
-        } else {
-          previewView.setAspectRatio(
-                  previewSize.getHeight(), previewSize.getWidth());
-        }
+  /**
+   * Picks the frame rate range for the requested rate and, with adaptive quality on, the levels
+   * the analysis stream may move between: sizes of the current aspect ratio within the preview
+   * size bounds, and frame rates from {@link #MIN_CAMERA_FPS} to {@link #REQUESTED_CAMERA_FPS}.
+   */
+  private void setUpQualityLevels(Size[] sizes, @Nullable Range<Integer>[] fpsRanges) {
+    List<AnalysisQualityController.Level> levels = AnalysisQualityController.buildLevels(
+            sizes, fpsRanges, analysisSize, MIN_CAMERA_PREVIEW_WIDTH, MAX_CAMERA_PREVIEW_WIDTH,
+            MAX_CAMERA_PREVIEW_HEIGHT, MIN_CAMERA_FPS, (int) REQUESTED_CAMERA_FPS);
+    int levelIndex = AnalysisQualityController.indexOf(levels, analysisSize, requestedFps);
+    fpsRange = levels.get(levelIndex).fpsRange;
+    PipelineMetrics metrics = adaptiveMetrics;
+    FrameGate frameGate = adaptiveFrameGate;
+    qualityController = metrics != null && frameGate != null
+            ? new AnalysisQualityController(levels, levelIndex, REQUESTED_CAMERA_FPS, metrics,
+                    frameGate, this::onQualityLevelChanged)
+            : null;
+  }
+
+  /** Applies a level chosen by the quality controller. Runs on the background thread. */
+  private void onQualityLevelChanged(AnalysisQualityController.Level level) {
+    // Remembered, so reopening the camera resumes at this level.
+    requestedAnalysisWidth = level.analysisSize.getWidth();
+    requestedAnalysisHeight = level.analysisSize.getHeight();
+    requestedFps = level.fpsRange != null ? level.fpsRange.getUpper() : (int) REQUESTED_CAMERA_FPS;
+    fpsRange = level.fpsRange;
+    if (level.analysisSize.equals(analysisSize)) {
+      setRepeatingRequest();
+    } else {
+      restartAnalysisStream(level.analysisSize);
+    }
+  }
 
+  /**
+   * Replaces the analysis stream with one of {@code size}, keeping the camera and the preview
+   * surface open. Runs on the background thread, so no frame is being handled meanwhile.
+   */
+  private void restartAnalysisStream(Size size) {
+    if (!processorLock.tryAcquire()) {
+      // The camera is being opened or closed.
+      return;
+    }
+    try {
+      if (camera == null || cameraCaptureSession == null) {
         return;
       }
+      backgroundHandler.removeCallbacks(qualityEvaluation);
+      cameraCaptureSession.close();
+      cameraCaptureSession = null;
+      imageReader.close();
+      createAnalysisOutput(size);
+      graphicOverlay.post(() -> graphicOverlay.setCameraInfo(this));
+      startCameraSession(surface);
+    } finally {
+      processorLock.release();
+    }
+  }
+
+  /** (Re)issues the repeating request with the current settings. */
+  private void setRepeatingRequest() {
+    if (cameraCaptureSession == null) {
+      return;
+    }
+    try {
+      if (fpsRange != null) {
+        previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+      }
+      previewRequest = previewRequestBuilder.build();
+      cameraCaptureSession.setRepeatingRequest(previewRequest,
+              captureCallback, backgroundHandler);
     } catch (CameraAccessException e) {
       e.printStackTrace();
-    } catch (NullPointerException e) {
     }
   }
 
-
   private void configureTransform(int viewWidth, int viewHeight) {
     Activity activity = (Activity) context;
     if (null == previewView || null == previewSize || null == activity) {
@@ -492,7 +673,8 @@ public class CameraSource {
     try {
       previewRequestBuilder = camera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
       previewRequestBuilder.addTarget(surface);
-      camera.createCaptureSession(Arrays.asList(surface),
+      previewRequestBuilder.addTarget(imageReader.getSurface());
+      camera.createCaptureSession(Arrays.asList(surface, imageReader.getSurface()),
               new CameraCaptureSession.StateCallback() {
 
                 @Override
@@ -502,15 +684,14 @@ public class CameraSource {
                   }
 
                   cameraCaptureSession = captureSession;
-                  try {
-                    previewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                            CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-
-                    previewRequest = previewRequestBuilder.build();
-                    cameraCaptureSession.setRepeatingRequest(previewRequest,
-                            captureCallback, backgroundHandler);
-                  } catch (CameraAccessException e) {
-                    e.printStackTrace();
+                  captureStates.reset();
+                  previewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                          CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                  setRepeatingRequest();
+                  StartupTimeline.mark(Milestone.SESSION_CONFIGURED);
+                  if (qualityController != null) {
+                    backgroundHandler.removeCallbacks(qualityEvaluation);
+                    backgroundHandler.postDelayed(qualityEvaluation, QUALITY_EVALUATION_INTERVAL_MS);
                   }
                 }
 
@@ -530,6 +711,9 @@ public class CameraSource {
    * Starts a background thread and its {@link Handler}.
    */
   private void startBackgroundThread() {
+    if (backgroundThread != null) {
+      return;
+    }
     backgroundThread = new HandlerThread("CameraBackground");
     backgroundThread.start();
     backgroundHandler = new Handler(backgroundThread.getLooper());
@@ -550,22 +734,4 @@ public class CameraSource {
       }
     }
   }
-
-
-  private ValueAnimator createLoadingAnimator(
-          GraphicOverlay graphicOverlay, FirebaseVisionBarcode barcode) {
-    float endProgress = 1.1f;
-    ValueAnimator loadingAnimator = ValueAnimator.ofFloat(0f, endProgress);
-    loadingAnimator.setDuration(2000);
-    loadingAnimator.addUpdateListener(
-            animation -> {
-              if (Float.compare((float) loadingAnimator.getAnimatedValue(), endProgress) >= 0) {
-                graphicOverlay.clear();
-              } else {
-                graphicOverlay.invalidate();
-              }
-            });
-    return loadingAnimator;
-  }
-
 }
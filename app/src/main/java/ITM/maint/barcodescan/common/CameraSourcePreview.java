@@ -27,6 +27,7 @@ import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.os.Handler;
 import android.util.AttributeSet;
+import android.util.Size;
 import android.view.Surface;
 import android.view.TextureView;
 import android.widget.FrameLayout;
@@ -56,6 +57,8 @@ public class CameraSourcePreview extends FrameLayout {
   private CameraDevice camera;
   private int state = STATE_PREVIEW;
   private Context context;
+  // Only touched on the main thread, where TextureView reports new frames.
+  private long previewFrameCount;
 
 
 
@@ -84,10 +87,16 @@ public class CameraSourcePreview extends FrameLayout {
     return surfaceAvailable;
   }
 
-  protected void createCameraPreviewSession(CameraDevice camera, Surface surface) {
+  /** Returns how many preview frames the texture view has received. Call on the main thread. */
+  public long getPreviewFrameCount() {
+    return previewFrameCount;
+  }
+
+  protected Surface createCameraPreviewSession(CameraDevice camera, Size previewSize) {
       SurfaceTexture texture = textureView.getSurfaceTexture();
       assert texture != null;
-      surface = new Surface(texture);
+      texture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
+      return new Surface(texture);
   }
 
   public void setAspectRatio(int width, int height) {
@@ -119,7 +128,7 @@ public class CameraSourcePreview extends FrameLayout {
 
     @Override
     public void onSurfaceTextureUpdated(SurfaceTexture surface) {
-
+      previewFrameCount++;
     }
 
   }
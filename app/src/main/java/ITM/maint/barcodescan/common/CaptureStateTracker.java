@@ -0,0 +1,111 @@
+package ITM.maint.barcodescan.common;
+
+import android.hardware.camera2.CaptureResult;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers, per sensor timestamp, whether the camera was settled when a frame was captured:
+ * focus not hunting, lens not moving and exposure not converging. A frame taken while any of
+ * them was still in motion is blurred or badly exposed, and decoding it costs as much as
+ * decoding a sharp one without ever succeeding, so {@link CameraSource} skips it.
+ *
+ * <p>Not thread-safe: results and frames are both handled on the camera's background thread.
+ */
+final class CaptureStateTracker {
+
+    // Capture results arrive a few frames ahead of or behind their images; this covers the gap.
+    private static final int HISTORY_SIZE = 8;
+    // A scene the camera cannot settle on, e.g. one without contrast, must still be decoded.
+    private static final long MAX_SKIP_NANOS = TimeUnit.MILLISECONDS.toNanos(400);
+
+    private final long[] timestamps = new long[HISTORY_SIZE];
+    private final boolean[] settled = new boolean[HISTORY_SIZE];
+    private int next;
+    private boolean lastSettled = true;
+    // Sensor timestamp of the first frame skipped in the current unsettled run, or 0.
+    private long skippingSinceNanos;
+    // Set once an unsettled run outlasted MAX_SKIP_NANOS; cleared by the next settled frame.
+    private boolean gaveUp;
+    private long skippedFrameCount;
+
+    /** Records the state of the capture a result belongs to. */
+    void onCaptureResult(CaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestamp == null) {
+            return;
+        }
+        boolean isSettled = isSettledState(
+                result.get(CaptureResult.CONTROL_AF_STATE),
+                result.get(CaptureResult.LENS_STATE),
+                result.get(CaptureResult.CONTROL_AE_STATE));
+        timestamps[next] = timestamp;
+        settled[next] = isSettled;
+        next = (next + 1) % HISTORY_SIZE;
+        lastSettled = isSettled;
+    }
+
+    /**
+     * Returns whether the frame with sensor timestamp {@code timestampNanos} should be skipped.
+     * A frame whose result has not arrived yet is judged by the latest result. Once the camera
+     * has been unsettled for {@link #MAX_SKIP_NANOS}, no frame is skipped until it settles again.
+     */
+    boolean shouldSkip(long timestampNanos) {
+        if (isSettled(timestampNanos)) {
+            skippingSinceNanos = 0;
+            gaveUp = false;
+            return false;
+        }
+        if (gaveUp) {
+            return false;
+        }
+        if (skippingSinceNanos == 0) {
+            skippingSinceNanos = timestampNanos;
+        } else if (timestampNanos - skippingSinceNanos > MAX_SKIP_NANOS) {
+            skippingSinceNanos = 0;
+            gaveUp = true;
+            return false;
+        }
+        skippedFrameCount++;
+        return true;
+    }
+
+    long getSkippedFrameCount() {
+        return skippedFrameCount;
+    }
+
+    /** Forgets all results and the skipped count, e.g. when a new capture session starts. */
+    void reset() {
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            timestamps[i] = 0;
+        }
+        lastSettled = true;
+        skippingSinceNanos = 0;
+        gaveUp = false;
+        skippedFrameCount = 0;
+    }
+
+    private boolean isSettled(long timestampNanos) {
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            if (timestamps[i] == timestampNanos) {
+                return settled[i];
+            }
+        }
+        return lastSettled;
+    }
+
+    /** Missing keys, e.g. on LEGACY devices, count as settled. */
+    private static boolean isSettledState(Integer afState, Integer lensState, Integer aeState) {
+        if (afState != null
+                && (afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN
+                        || afState == CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN)) {
+            return false;
+        }
+        if (lensState != null && lensState == CaptureResult.LENS_STATE_MOVING) {
+            return false;
+        }
+        return aeState == null
+                || (aeState != CaptureResult.CONTROL_AE_STATE_SEARCHING
+                        && aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE);
+    }
+}
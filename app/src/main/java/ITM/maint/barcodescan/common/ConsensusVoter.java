@@ -0,0 +1,111 @@
+package ITM.maint.barcodescan.common;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import ITM.maint.barcodescan.decoder.DecodedBarcode;
+
+/**
+ * Holds a decoded barcode back until the same symbology and value were read on at least N of the
+ * last M decoded frames, so a single misread never reaches the operator. Each candidate keeps a
+ * ring buffer of M slots recording the frames it was read on.
+ */
+public class ConsensusVoter {
+
+    private int requiredVotes;
+    private int windowSize;
+    private final List<Candidate> candidates = new ArrayList<>();
+    private long frameIndex;
+
+    private static class Candidate {
+        final int format;
+        @Nullable final String rawValue;
+        final boolean[] votes;
+        int voteCount;
+
+        Candidate(int format, @Nullable String rawValue, int windowSize) {
+            this.format = format;
+            this.rawValue = rawValue;
+            this.votes = new boolean[windowSize];
+        }
+
+        boolean matches(DecodedBarcode barcode) {
+            return format == barcode.getFormat()
+                    && (rawValue == null
+                            ? barcode.getRawValue() == null
+                            : rawValue.equals(barcode.getRawValue()));
+        }
+    }
+
+    public ConsensusVoter(int requiredVotes, int windowSize) {
+        setVoting(requiredVotes, windowSize);
+    }
+
+    /**
+     * Requires {@code requiredVotes} reads within the last {@code windowSize} frames. One of one
+     * turns voting off. Clears all votes so far.
+     */
+    public synchronized void setVoting(int requiredVotes, int windowSize) {
+        if (requiredVotes < 1 || windowSize < requiredVotes) {
+            throw new IllegalArgumentException(
+                    "Need 1 <= votes <= window, got " + requiredVotes + " of " + windowSize);
+        }
+        this.requiredVotes = requiredVotes;
+        this.windowSize = windowSize;
+        reset();
+    }
+
+    /**
+     * Records the barcode read on a decoded frame, or null if none was, and returns true if that
+     * barcode now has enough votes to be reported.
+     */
+    public synchronized boolean vote(@Nullable DecodedBarcode barcode) {
+        int slot = (int) (frameIndex++ % windowSize);
+        Candidate voted = null;
+        for (Iterator<Candidate> iterator = candidates.iterator(); iterator.hasNext(); ) {
+            Candidate candidate = iterator.next();
+            // The slot now starts a new frame, so the vote it held drops out of the window.
+            if (candidate.votes[slot]) {
+                candidate.votes[slot] = false;
+                candidate.voteCount--;
+            }
+            if (barcode != null && voted == null && candidate.matches(barcode)) {
+                voted = candidate;
+            } else if (candidate.voteCount == 0) {
+                iterator.remove();
+            }
+        }
+        if (barcode == null) {
+            return false;
+        }
+        if (voted == null) {
+            voted = new Candidate(barcode.getFormat(), barcode.getRawValue(), windowSize);
+            candidates.add(voted);
+        }
+        voted.votes[slot] = true;
+        voted.voteCount++;
+        return voted.voteCount >= requiredVotes;
+    }
+
+    /** Returns true if {@code barcode} currently has enough votes, without casting one. */
+    public synchronized boolean isConfirmed(@Nullable DecodedBarcode barcode) {
+        if (barcode == null) {
+            return false;
+        }
+        for (Candidate candidate : candidates) {
+            if (candidate.matches(barcode)) {
+                return candidate.voteCount >= requiredVotes;
+            }
+        }
+        return false;
+    }
+
+    /** Forgets all votes, e.g. when a new scan starts. */
+    public synchronized void reset() {
+        candidates.clear();
+        frameIndex = 0;
+    }
+}
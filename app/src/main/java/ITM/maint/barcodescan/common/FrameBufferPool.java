@@ -0,0 +1,206 @@
+package ITM.maint.barcodescan.common;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.PixelFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A bounded pool of frame-sized byte arrays, byte buffers and bitmaps, keyed by frame width, height
+ * and format. Buffers are leased for one frame and returned when that frame is done, so continuous
+ * scanning reuses the same few buffers instead of allocating new ones per frame.
+ *
+ * <p>Idle buffers count against a memory cap. A buffer returned while the pool is full is left for
+ * the garbage collector instead.
+ */
+public class FrameBufferPool {
+
+    // Room for a handful of 1080p YUV frames plus their bitmaps.
+    public static final long DEFAULT_MAX_POOLED_BYTES = 32L * 1024 * 1024;
+
+    private final long maxPooledBytes;
+    private final Map<Key, ArrayDeque<byte[]>> byteArrays = new HashMap<>();
+    private final Map<Key, ArrayDeque<Bitmap>> bitmaps = new HashMap<>();
+    // Every pooled array is wrapped once, so leasing a ByteBuffer does not allocate either.
+    private final Map<byte[], ByteBuffer> bytesToByteBuffer = new IdentityHashMap<>();
+    private final Map<byte[], Key> byteArrayKeys = new IdentityHashMap<>();
+
+    private long pooledBytes;
+    private long hitCount;
+    private long missCount;
+
+    public FrameBufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    public FrameBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /** Leases a byte array large enough to hold one frame described by {@code metadata}. */
+    public synchronized byte[] acquireBytes(FrameMetadata metadata) {
+        Key key = new Key(metadata.getWidth(), metadata.getHeight(), metadata.getFormat());
+        ArrayDeque<byte[]> pooled = byteArrays.get(key);
+        if (pooled != null && !pooled.isEmpty()) {
+            byte[] bytes = pooled.pop();
+            pooledBytes -= bytes.length;
+            hitCount++;
+            return bytes;
+        }
+        missCount++;
+        byte[] bytes = new byte[getFrameSize(metadata)];
+        byteArrayKeys.put(bytes, key);
+        return bytes;
+    }
+
+    /** Leases a byte buffer, backed by a pooled array, that holds one frame. */
+    public synchronized ByteBuffer acquireByteBuffer(FrameMetadata metadata) {
+        byte[] bytes = acquireBytes(metadata);
+        ByteBuffer buffer = bytesToByteBuffer.get(bytes);
+        if (buffer == null) {
+            buffer = ByteBuffer.wrap(bytes);
+            bytesToByteBuffer.put(bytes, buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a byte array leased from {@link #acquireBytes(FrameMetadata)}. */
+    public synchronized void release(byte[] bytes) {
+        Key key = byteArrayKeys.get(bytes);
+        if (key == null) {
+            return;
+        }
+        if (pooledBytes + bytes.length > maxPooledBytes) {
+            forget(bytes);
+            return;
+        }
+        ArrayDeque<byte[]> pooled = byteArrays.get(key);
+        if (pooled == null) {
+            pooled = new ArrayDeque<>();
+            byteArrays.put(key, pooled);
+        }
+        pooled.push(bytes);
+        pooledBytes += bytes.length;
+    }
+
+    /**
+     * Returns a byte buffer leased from {@link #acquireByteBuffer(FrameMetadata)}. Buffers the pool
+     * did not hand out are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            release(buffer.array());
+        }
+    }
+
+    /** Leases a mutable ARGB_8888 bitmap of the given size. Its previous contents are undefined. */
+    public synchronized Bitmap acquireBitmap(int width, int height) {
+        ArrayDeque<Bitmap> pooled = bitmaps.get(new Key(width, height, PixelFormat.RGBA_8888));
+        if (pooled != null && !pooled.isEmpty()) {
+            Bitmap bitmap = pooled.pop();
+            pooledBytes -= bitmap.getAllocationByteCount();
+            hitCount++;
+            return bitmap;
+        }
+        missCount++;
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /** Returns a bitmap leased from {@link #acquireBitmap(int, int)}. */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        if (pooledBytes + bitmap.getAllocationByteCount() > maxPooledBytes) {
+            bitmap.recycle();
+            return;
+        }
+        Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), PixelFormat.RGBA_8888);
+        ArrayDeque<Bitmap> pooled = bitmaps.get(key);
+        if (pooled == null) {
+            pooled = new ArrayDeque<>();
+            bitmaps.put(key, pooled);
+        }
+        pooled.push(bitmap);
+        pooledBytes += bitmap.getAllocationByteCount();
+    }
+
+    /** Drops every idle buffer, e.g. when the frame size changes or the camera is stopped. */
+    public synchronized void clear() {
+        for (ArrayDeque<byte[]> pooled : byteArrays.values()) {
+            for (byte[] bytes : pooled) {
+                forget(bytes);
+            }
+        }
+        byteArrays.clear();
+        for (ArrayDeque<Bitmap> pooled : bitmaps.values()) {
+            for (Bitmap bitmap : pooled) {
+                bitmap.recycle();
+            }
+        }
+        bitmaps.clear();
+        pooledBytes = 0;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits=" + hitCount + ", misses=" + missCount + ", pooledBytes=" + pooledBytes;
+    }
+
+    private void forget(byte[] bytes) {
+        byteArrayKeys.remove(bytes);
+        bytesToByteBuffer.remove(bytes);
+    }
+
+    private static int getFrameSize(FrameMetadata metadata) {
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(metadata.getFormat());
+        return metadata.getWidth() * metadata.getHeight() * bitsPerPixel / 8;
+    }
+
+    private static class Key {
+        final int width;
+        final int height;
+        final int format;
+
+        Key(int width, int height, int format) {
+            this.width = width;
+            this.height = height;
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return width == key.width && height == key.height && format == key.format;
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + format;
+        }
+    }
+}
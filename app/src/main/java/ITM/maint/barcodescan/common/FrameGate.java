@@ -0,0 +1,79 @@
+package ITM.maint.barcodescan.common;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many frames may be in the detector at once. A frame that arrives while every permit
+ * is taken is dropped by the caller instead of queued, so a slow detector never backs up the
+ * camera's image queue.
+ */
+public class FrameGate {
+
+    private final Semaphore inFlightLock;
+    private final AtomicLong droppedFrameCount = new AtomicLong();
+    private final AtomicLong processedFrameCount = new AtomicLong();
+
+    public FrameGate() {
+        this(1);
+    }
+
+    public FrameGate(int maxFramesInFlight) {
+        inFlightLock = new Semaphore(maxFramesInFlight);
+    }
+
+    /**
+     * Tries to admit a frame. Returns false, and counts the frame as dropped, if the maximum
+     * number of frames are already being processed.
+     */
+    public boolean tryEnter() {
+        if (inFlightLock.tryAcquire()) {
+            return true;
+        }
+        droppedFrameCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Tries to admit a frame without counting a drop on failure, for callers that hold the frame
+     * back in a queue instead of dropping it.
+     */
+    public boolean tryAcquire() {
+        return inFlightLock.tryAcquire();
+    }
+
+    /** Counts a frame that was dropped without ever being admitted, e.g. evicted from a queue. */
+    public void recordDropped() {
+        droppedFrameCount.incrementAndGet();
+    }
+
+    /** Releases the permit of a frame that finished processing. */
+    public void exit() {
+        processedFrameCount.incrementAndGet();
+        inFlightLock.release();
+    }
+
+    /** Releases the permit of an admitted frame that never reached the detector. */
+    public void abort() {
+        inFlightLock.release();
+    }
+
+    public long getDroppedFrameCount() {
+        return droppedFrameCount.get();
+    }
+
+    public long getProcessedFrameCount() {
+        return processedFrameCount.get();
+    }
+
+    /** Clears the frame counters, e.g. when a new camera session starts. */
+    public void resetCounters() {
+        droppedFrameCount.set(0);
+        processedFrameCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "processed=" + getProcessedFrameCount() + ", dropped=" + getDroppedFrameCount();
+    }
+}
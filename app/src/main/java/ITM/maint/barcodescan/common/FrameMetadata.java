@@ -14,6 +14,9 @@ package ITM.maint.barcodescan.common;
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
+import android.graphics.ImageFormat;
+
+import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
 
 /** Describing a frame info. */
 public class FrameMetadata {
@@ -22,6 +25,7 @@ public class FrameMetadata {
     private final int height;
     private final int rotation;
     private final int cameraFacing;
+    private final int format;
 
     public int getWidth() {
         return width;
@@ -39,11 +43,35 @@ public class FrameMetadata {
         return cameraFacing;
     }
 
-    private FrameMetadata(int width, int height, int rotation, int facing) {
+    /** Returns the {@link ImageFormat} of the frame's pixel data. */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * Converts a clockwise rotation in degrees to the matching {@link FirebaseVisionImageMetadata}
+     * rotation constant.
+     */
+    @FirebaseVisionImageMetadata.Rotation
+    public static int toFirebaseRotation(int degrees) {
+        switch (degrees) {
+            case 90:
+                return FirebaseVisionImageMetadata.ROTATION_90;
+            case 180:
+                return FirebaseVisionImageMetadata.ROTATION_180;
+            case 270:
+                return FirebaseVisionImageMetadata.ROTATION_270;
+            default:
+                return FirebaseVisionImageMetadata.ROTATION_0;
+        }
+    }
+
+    private FrameMetadata(int width, int height, int rotation, int facing, int format) {
         this.width = width;
         this.height = height;
         this.rotation = rotation;
         cameraFacing = facing;
+        this.format = format;
     }
 
     /** Builder of {@link FrameMetadata}. */
@@ -52,7 +80,8 @@ public class FrameMetadata {
         private int width;
         private int height;
         private int rotation;
-        private int cameraFacing;
+        private int cameraFacing = CameraSource.CAMERA_FACING_BACK;
+        private int format = ImageFormat.NV21;
 
         public Builder setWidth(int width) {
             this.width = width;
@@ -74,8 +103,13 @@ public class FrameMetadata {
             return this;
         }
 
+        public Builder setFormat(int format) {
+            this.format = format;
+            return this;
+        }
+
         public FrameMetadata build() {
-            return new FrameMetadata(width, height, rotation, cameraFacing);
+            return new FrameMetadata(width, height, rotation, cameraFacing, format);
         }
     }
 }
@@ -21,13 +21,18 @@ import android.content.res.Configuration;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.Trace;
 import android.util.AttributeSet;
 import android.util.Size;
 import android.view.View;
 
+import androidx.annotation.Nullable;
+
 import java.util.ArrayList;
 import java.util.List;
 
+import ITM.maint.barcodescan.perf.PipelineMetrics;
+
 /**
  * A view which renders a series of custom graphics to be overlaid on top of an associated preview
  * (i.e., the camera preview). The creator can add graphics objects, update the objects, and remove
@@ -43,11 +48,12 @@ import java.util.List;
 public class GraphicOverlay extends View {
     private final Object lock = new Object();
 
-    private int previewWidth;
-    private float widthScaleFactor = 1.0f;
-    private int previewHeight;
-    private float heightScaleFactor = 1.0f;
+    // Replaced, never changed, under lock; read without it from the camera and analyzer threads.
+    private volatile Scale scale = new Scale(0, 0, 0, 0);
     private final List<Graphic> graphics = new ArrayList<>();
+    @Nullable private PipelineMetrics pipelineMetrics;
+    // Drawn on top of the other graphics and kept when they are cleared or replaced.
+    @Nullable private Graphic hudGraphic;
 
     /**
      * Base class for a custom graphics object to be rendered within the graphic overlay. Subclass
@@ -65,20 +71,85 @@ public class GraphicOverlay extends View {
 
         /** Draws the graphic on the supplied canvas. */
         protected abstract void draw(Canvas canvas);
+
+        /** Called once the graphic has been removed from the overlay and will not be drawn again. */
+        protected void release() {}
+    }
+
+    /** How preview coordinates map to the view, for one preview size and one view size. */
+    private static final class Scale {
+        final int previewWidth;
+        final int previewHeight;
+        final int viewWidth;
+        final int viewHeight;
+        final float widthFactor;
+        final float heightFactor;
+
+        Scale(int previewWidth, int previewHeight, int viewWidth, int viewHeight) {
+            this.previewWidth = previewWidth;
+            this.previewHeight = previewHeight;
+            this.viewWidth = viewWidth;
+            this.viewHeight = viewHeight;
+            // Identity until both the preview and the view have a size.
+            boolean known = previewWidth > 0 && previewHeight > 0 && viewWidth > 0 && viewHeight > 0;
+            widthFactor = known ? (float) viewWidth / previewWidth : 1.0f;
+            heightFactor = known ? (float) viewHeight / previewHeight : 1.0f;
+        }
     }
 
     public GraphicOverlay(Context context, AttributeSet attrs) {
         super(context, attrs);
     }
 
+    /** Sets where the duration of each draw pass is recorded, or null to not record it. */
+    public void setPipelineMetrics(@Nullable PipelineMetrics pipelineMetrics) {
+        this.pipelineMetrics = pipelineMetrics;
+    }
+
     /** Removes all graphics from the overlay. */
     public void clear() {
         synchronized (lock) {
+            for (Graphic graphic : graphics) {
+                graphic.release();
+            }
             graphics.clear();
         }
         postInvalidate();
     }
 
+    /**
+     * Replaces every graphic on the overlay with {@code graphic}, or with nothing if it is null.
+     * Unlike {@link #clear()} this does not invalidate, so the caller can batch it with other
+     * changes. A graphic that stays on the overlay is not released.
+     */
+    public void setGraphic(@Nullable Graphic graphic) {
+        synchronized (lock) {
+            for (Graphic existing : graphics) {
+                if (existing != graphic) {
+                    existing.release();
+                }
+            }
+            graphics.clear();
+            if (graphic != null) {
+                graphics.add(graphic);
+            }
+        }
+    }
+
+    /**
+     * Sets a graphic that is drawn above all others and survives {@link #clear()} and
+     * {@link #setGraphic}, or removes it if null.
+     */
+    public void setHudGraphic(@Nullable Graphic graphic) {
+        synchronized (lock) {
+            if (hudGraphic != null && hudGraphic != graphic) {
+                hudGraphic.release();
+            }
+            hudGraphic = graphic;
+        }
+        postInvalidate();
+    }
+
     /** Adds a graphic to the overlay. */
     public void add(Graphic graphic) {
         synchronized (lock) {
@@ -88,10 +159,19 @@ public class GraphicOverlay extends View {
 
     /**
      * Sets the camera attributes for size and facing direction, which informs how to transform image
-     * coordinates later.
+     * coordinates later. Detections are reported in the analysis frame, so that is the size used.
      */
     public void setCameraInfo(CameraSource cameraSource) {
-        Size previewSize = cameraSource.getPreviewSize();
+        setCameraInfo(cameraSource.getAnalysisSize());
+    }
+
+    /**
+     * Sets the size of the analysis frames, in the camera's natural orientation, for camera paths
+     * without a {@link CameraSource}, such as the CameraX analyzer.
+     */
+    public void setCameraInfo(Size previewSize) {
+        int previewWidth;
+        int previewHeight;
         if (isPortraitMode(getContext())) {
             // Swap width and height when in portrait, since camera's natural orientation is landscape.
             previewWidth = previewSize.getHeight();
@@ -100,14 +180,29 @@ public class GraphicOverlay extends View {
             previewWidth = previewSize.getWidth();
             previewHeight = previewSize.getHeight();
         }
+        synchronized (lock) {
+            Scale current = scale;
+            scale = new Scale(previewWidth, previewHeight, current.viewWidth, current.viewHeight);
+        }
+        // May be called off the main thread.
+        postInvalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        synchronized (lock) {
+            Scale current = scale;
+            scale = new Scale(current.previewWidth, current.previewHeight, width, height);
+        }
     }
 
     public float translateX(float x) {
-        return x * widthScaleFactor;
+        return x * scale.widthFactor;
     }
 
     public float translateY(float y) {
-        return y * heightScaleFactor;
+        return y * scale.heightFactor;
     }
 
     /**
@@ -115,27 +210,47 @@ public class GraphicOverlay extends View {
      * coordinate system.
      */
     public RectF translateRect(Rect rect) {
+        Scale scale = this.scale;
         return new RectF(
-                translateX(rect.left),
-                translateY(rect.top),
-                translateX(rect.right),
-                translateY(rect.bottom));
+                rect.left * scale.widthFactor,
+                rect.top * scale.heightFactor,
+                rect.right * scale.widthFactor,
+                rect.bottom * scale.heightFactor);
+    }
+
+    /**
+     * Adjusts the {@code rect}'s coordinate from the view coordinate system back to the preview's
+     * coordinate system. This is the inverse of {@link #translateRect(Rect)}.
+     */
+    public Rect untranslateRect(RectF rect) {
+        Scale scale = this.scale;
+        return new Rect(
+                (int) (rect.left / scale.widthFactor),
+                (int) (rect.top / scale.heightFactor),
+                (int) Math.ceil(rect.right / scale.widthFactor),
+                (int) Math.ceil(rect.bottom / scale.heightFactor));
     }
 
     /** Draws the overlay with its associated graphic objects. */
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-
-        if (previewWidth > 0 && previewHeight > 0) {
-            widthScaleFactor = (float) getWidth() / previewWidth;
-            heightScaleFactor = (float) getHeight() / previewHeight;
-        }
-
-        synchronized (lock) {
-            for (Graphic graphic : graphics) {
-                graphic.draw(canvas);
+        long startNanos = pipelineMetrics != null ? PipelineMetrics.now() : 0;
+        Trace.beginSection("GraphicOverlay.draw");
+        try {
+            synchronized (lock) {
+                for (Graphic graphic : graphics) {
+                    graphic.draw(canvas);
+                }
+                if (hudGraphic != null) {
+                    hudGraphic.draw(canvas);
+                }
             }
+        } finally {
+            Trace.endSection();
+        }
+        if (pipelineMetrics != null) {
+            pipelineMetrics.record(PipelineMetrics.Stage.DRAW, startNanos, PipelineMetrics.now());
         }
     }
 
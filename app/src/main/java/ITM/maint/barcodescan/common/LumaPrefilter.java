@@ -0,0 +1,142 @@
+package ITM.maint.barcodescan.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ITM.maint.barcodescan.common.ReticleCropper.CroppedFrame;
+
+/**
+ * Rejects frames not worth decoding, from a sparse sample of their luma plane: blurred frames,
+ * whose mean gradient is too low for any barcode edge to survive, and frames that have not
+ * changed since the last one let through, when that one held no barcode. Samples are taken on a
+ * fixed grid into preallocated arrays, so a check allocates nothing and reads a few thousand
+ * pixels.
+ *
+ * <p>Not thread-safe; frames are checked one at a time on the thread that delivers them.
+ */
+public class LumaPrefilter {
+
+    /** How eagerly frames are rejected. Thresholds are mean luma steps, out of 255. */
+    public enum Preset {
+        OFF(0, 0),
+        LENIENT(2f, 1.5f),
+        STRICT(4f, 3f);
+
+        // Mean of |dx| + |dy| at the sample points below which a frame counts as blurred.
+        final float minSharpness;
+        // Mean absolute difference from the reference below which a frame counts as unchanged.
+        final float minChange;
+
+        Preset(float minSharpness, float minChange) {
+            this.minSharpness = minSharpness;
+            this.minChange = minChange;
+        }
+    }
+
+    private static final int GRID_COLUMNS = 64;
+    private static final int GRID_ROWS = 32;
+    private static final int SAMPLE_COUNT = GRID_COLUMNS * GRID_ROWS;
+    // Unchanged frames skipped in a row before one is decoded anyway, e.g. as the light changes.
+    private static final int MAX_UNCHANGED_SKIPS = 15;
+
+    private Preset preset = Preset.OFF;
+    private byte[] samples = new byte[SAMPLE_COUNT];
+    // Samples of the last frame let through.
+    private byte[] reference = new byte[SAMPLE_COUNT];
+    private boolean hasReference;
+    private int unchangedSkips;
+
+    private final AtomicLong blurredCount = new AtomicLong();
+    private final AtomicLong unchangedCount = new AtomicLong();
+
+    public void setPreset(Preset preset) {
+        this.preset = preset;
+        reset();
+    }
+
+    /**
+     * Returns whether {@code frame} should go on to the detector. Unchanged frames are only
+     * rejected if {@code lastDecodeEmpty}, so a code held still keeps being read and confirmed.
+     * Frames without an NV21 buffer are always let through.
+     */
+    public boolean accept(CroppedFrame frame, boolean lastDecodeEmpty) {
+        ByteBuffer buffer = frame.getBuffer();
+        FrameMetadata metadata = frame.getBufferMetadata();
+        if (preset == Preset.OFF || buffer == null || metadata == null || !buffer.hasArray()) {
+            return true;
+        }
+        byte[] data = buffer.array();
+        int offset = buffer.arrayOffset();
+        int width = metadata.getWidth();
+        int height = metadata.getHeight();
+        if (width < 2 || height < 2) {
+            return true;
+        }
+
+        long gradientTotal = 0;
+        long differenceTotal = 0;
+        int i = 0;
+        for (int row = 0; row < GRID_ROWS; row++) {
+            // Keep one pixel of margin for the neighbours the gradient is taken against.
+            int y = sampleCoordinate(row, GRID_ROWS, height - 1);
+            int rowStart = offset + y * width;
+            for (int column = 0; column < GRID_COLUMNS; column++) {
+                int index = rowStart + sampleCoordinate(column, GRID_COLUMNS, width - 1);
+                int luma = data[index] & 0xff;
+                gradientTotal += Math.abs((data[index + 1] & 0xff) - luma)
+                        + Math.abs((data[index + width] & 0xff) - luma);
+                differenceTotal += Math.abs(luma - (reference[i] & 0xff));
+                samples[i++] = (byte) luma;
+            }
+        }
+
+        if (gradientTotal < preset.minSharpness * SAMPLE_COUNT) {
+            blurredCount.incrementAndGet();
+            return false;
+        }
+        if (hasReference
+                && lastDecodeEmpty
+                && differenceTotal < preset.minChange * SAMPLE_COUNT
+                && unchangedSkips < MAX_UNCHANGED_SKIPS) {
+            unchangedSkips++;
+            unchangedCount.incrementAndGet();
+            return false;
+        }
+        byte[] swap = reference;
+        reference = samples;
+        samples = swap;
+        hasReference = true;
+        unchangedSkips = 0;
+        return true;
+    }
+
+    /** Forgets the reference frame, e.g. when a new camera session starts. */
+    public void reset() {
+        hasReference = false;
+        unchangedSkips = 0;
+    }
+
+    public long getBlurredCount() {
+        return blurredCount.get();
+    }
+
+    public long getUnchangedCount() {
+        return unchangedCount.get();
+    }
+
+    public void resetCounters() {
+        blurredCount.set(0);
+        unchangedCount.set(0);
+    }
+
+    /** Returns the pixel coordinate of a grid cell's centre along an axis of {@code size} pixels. */
+    private static int sampleCoordinate(int cell, int cells, int size) {
+        return (2 * cell + 1) * size / (2 * cells);
+    }
+
+    @Override
+    public String toString() {
+        return "preset=" + preset + ", blurred=" + getBlurredCount()
+                + ", unchanged=" + getUnchangedCount();
+    }
+}
@@ -0,0 +1,194 @@
+package ITM.maint.barcodescan.common;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.Image;
+
+import androidx.annotation.Nullable;
+
+import com.google.firebase.ml.vision.common.FirebaseVisionImage;
+import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
+
+import java.nio.ByteBuffer;
+
+import ITM.maint.barcodescan.common.preferences.ScanSettings;
+import ITM.maint.barcodescan.perf.FrameTimestamps;
+
+/**
+ * Crops analysis frames to the barcode reticle before detection. The reticle box is mapped from
+ * the overlay back into the sensor's buffer, grown by a margin so barcodes on the edge of the
+ * reticle are still decoded, and only that region is copied out and sent to the detector.
+ *
+ * <p>The pixels are always copied, even when the whole frame is used, so the camera image can be
+ * closed as soon as {@link #crop} returns. Crop buffers are leased from a {@link FrameBufferPool} and
+ * go back to it when the frame is {@link CroppedFrame#release() released}. Frames must be cropped
+ * from one thread at a time.
+ */
+public class ReticleCropper {
+
+    // Fraction of the reticle size added on each side of the crop.
+    private static final float CROP_MARGIN_FRACTION = 0.1f;
+
+    private final GraphicOverlay graphicOverlay;
+    private final FrameBufferPool bufferPool;
+    private final RectF reticleBox = new RectF();
+    private boolean enabled = true;
+
+    /** The detector input for one frame and where it sits in the full, upright frame. */
+    public static class CroppedFrame {
+        public final FirebaseVisionImage image;
+        public final Rect region;
+        @Nullable private final FrameBufferPool bufferPool;
+        @Nullable private final ByteBuffer buffer;
+        @Nullable private final FrameMetadata bufferMetadata;
+        public final FrameTimestamps timestamps = new FrameTimestamps();
+
+        public CroppedFrame(
+                FirebaseVisionImage image,
+                Rect region,
+                @Nullable FrameBufferPool bufferPool,
+                @Nullable ByteBuffer buffer,
+                @Nullable FrameMetadata bufferMetadata) {
+            this.image = image;
+            this.region = region;
+            this.bufferPool = bufferPool;
+            this.buffer = buffer;
+            this.bufferMetadata = bufferMetadata;
+        }
+
+        /** Returns the NV21 pixels the detector reads, or null if the frame is not backed by one. */
+        @Nullable
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /** Returns the size and format of {@link #getBuffer()}, in unrotated sensor orientation. */
+        @Nullable
+        public FrameMetadata getBufferMetadata() {
+            return bufferMetadata;
+        }
+
+        /** Returns the crop buffer to the pool. Call once detection of this frame completes. */
+        public void release() {
+            if (bufferPool != null && buffer != null) {
+                bufferPool.release(buffer);
+            }
+        }
+
+        /** Maps a bounding box reported for this frame to the overlay's view coordinates. */
+        public RectF toOverlayRect(GraphicOverlay overlay, Rect box) {
+            Rect frameBox = new Rect(box);
+            frameBox.offset(region.left, region.top);
+            return overlay.translateRect(frameBox);
+        }
+    }
+
+    public ReticleCropper(GraphicOverlay graphicOverlay, FrameBufferPool bufferPool) {
+        this.graphicOverlay = graphicOverlay;
+        this.bufferPool = bufferPool;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Prepares the detector input for a YUV_420_888 frame. The whole frame is used if cropping is
+     * disabled or the overlay has not been laid out yet.
+     */
+    public CroppedFrame crop(Image image, @FirebaseVisionImageMetadata.Rotation int rotation) {
+        int frameWidth = image.getWidth();
+        int frameHeight = image.getHeight();
+
+        Rect sensorRegion = enabled ? getSensorRegion(frameWidth, frameHeight, rotation) : null;
+        if (sensorRegion == null) {
+            sensorRegion = new Rect(0, 0, frameWidth & ~1, frameHeight & ~1);
+        }
+
+        FrameMetadata bufferMetadata =
+                new FrameMetadata.Builder()
+                        .setWidth(sensorRegion.width())
+                        .setHeight(sensorRegion.height())
+                        .setRotation(rotation)
+                        .setFormat(ImageFormat.NV21)
+                        .build();
+        ByteBuffer nv21 = bufferPool.acquireByteBuffer(bufferMetadata);
+        BitmapUtils.copyToNv21(image, sensorRegion, nv21.array());
+
+        FirebaseVisionImageMetadata metadata =
+                new FirebaseVisionImageMetadata.Builder()
+                        .setWidth(sensorRegion.width())
+                        .setHeight(sensorRegion.height())
+                        .setFormat(FirebaseVisionImageMetadata.IMAGE_FORMAT_NV21)
+                        .setRotation(rotation)
+                        .build();
+        return new CroppedFrame(
+                FirebaseVisionImage.fromByteBuffer(nv21, metadata),
+                toUpright(sensorRegion, frameWidth, frameHeight, rotation),
+                bufferPool,
+                nv21,
+                bufferMetadata);
+    }
+
+    /** Returns the reticle region, plus margin, in sensor buffer coordinates. */
+    private Rect getSensorRegion(int frameWidth, int frameHeight, int rotation) {
+        if (graphicOverlay.getWidth() == 0 || graphicOverlay.getHeight() == 0) {
+            return null;
+        }
+        reticleBox.set(
+                ScanSettings.get(graphicOverlay.getContext())
+                        .getReticleBox(graphicOverlay.getWidth(), graphicOverlay.getHeight()));
+        reticleBox.inset(
+                -reticleBox.width() * CROP_MARGIN_FRACTION, -reticleBox.height() * CROP_MARGIN_FRACTION);
+        Rect sensorRegion =
+                toSensor(graphicOverlay.untranslateRect(reticleBox), frameWidth, frameHeight, rotation);
+
+        // NV21 subsamples chroma by two, so the crop has to start and end on even pixels.
+        sensorRegion.left = Math.max(0, sensorRegion.left) & ~1;
+        sensorRegion.top = Math.max(0, sensorRegion.top) & ~1;
+        sensorRegion.right = Math.min(frameWidth, sensorRegion.right) & ~1;
+        sensorRegion.bottom = Math.min(frameHeight, sensorRegion.bottom) & ~1;
+        return sensorRegion.isEmpty() ? null : sensorRegion;
+    }
+
+    /** Maps a rect in the upright frame back to the unrotated sensor buffer. */
+    private static Rect toSensor(Rect upright, int frameWidth, int frameHeight, int rotation) {
+        switch (rotation) {
+            case FirebaseVisionImageMetadata.ROTATION_90:
+                return new Rect(
+                        upright.top, frameHeight - upright.right, upright.bottom, frameHeight - upright.left);
+            case FirebaseVisionImageMetadata.ROTATION_180:
+                return new Rect(
+                        frameWidth - upright.right,
+                        frameHeight - upright.bottom,
+                        frameWidth - upright.left,
+                        frameHeight - upright.top);
+            case FirebaseVisionImageMetadata.ROTATION_270:
+                return new Rect(
+                        frameWidth - upright.bottom, upright.left, frameWidth - upright.top, upright.right);
+            default:
+                return new Rect(upright);
+        }
+    }
+
+    /** Maps a rect in the unrotated sensor buffer to the upright frame. */
+    private static Rect toUpright(Rect sensor, int frameWidth, int frameHeight, int rotation) {
+        switch (rotation) {
+            case FirebaseVisionImageMetadata.ROTATION_90:
+                return new Rect(
+                        frameHeight - sensor.bottom, sensor.left, frameHeight - sensor.top, sensor.right);
+            case FirebaseVisionImageMetadata.ROTATION_180:
+                return new Rect(
+                        frameWidth - sensor.right,
+                        frameHeight - sensor.bottom,
+                        frameWidth - sensor.left,
+                        frameHeight - sensor.top);
+            case FirebaseVisionImageMetadata.ROTATION_270:
+                return new Rect(
+                        sensor.top, frameWidth - sensor.right, sensor.bottom, frameWidth - sensor.left);
+            default:
+                return new Rect(sensor);
+        }
+    }
+}
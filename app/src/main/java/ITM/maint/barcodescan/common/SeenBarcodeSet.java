@@ -0,0 +1,46 @@
+package ITM.maint.barcodescan.common;
+
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded set of the barcodes already accepted in continuous scanning, keyed by symbology and
+ * value. When full, the code accepted longest ago is forgotten first, the same one {@link
+ * WorkflowModel#scannedBarcodes} drops, so a code is only accepted again once it has left the list.
+ */
+public class SeenBarcodeSet {
+
+    // A few shelves' worth; a code forgotten after this many others is simply accepted again.
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final Map<String, Boolean> seen;
+
+    public SeenBarcodeSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SeenBarcodeSet(int capacity) {
+        // Insertion order, matching the order codes are added to the scanned list.
+        seen = new LinkedHashMap<String, Boolean>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Adds the code and returns true if it was not seen before. */
+    public synchronized boolean add(int format, @Nullable String rawValue) {
+        return seen.put(format + ":" + rawValue, Boolean.TRUE) == null;
+    }
+
+    public synchronized int size() {
+        return seen.size();
+    }
+
+    public synchronized void clear() {
+        seen.clear();
+    }
+}
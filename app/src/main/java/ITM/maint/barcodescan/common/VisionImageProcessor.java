@@ -26,6 +26,12 @@ import java.nio.ByteBuffer;
 /** An inferface to process the images with different ML Kit detectors and custom image models. */
 public interface VisionImageProcessor {
 
+    /**
+     * Processes a YUV_420_888 camera image. Implementations copy what they need before returning,
+     * so the caller closes the image as soon as this returns.
+     */
+    void process(Image image, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay);
+
     /** Processes the images with the underlying machine learning models. */
     void process(ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay)
             throws FirebaseMLException;
@@ -24,8 +24,12 @@ import androidx.annotation.MainThread;
 import androidx.annotation.Nullable;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.MutableLiveData;
-import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
+import ITM.maint.barcodescan.BarcodeField;
+import ITM.maint.barcodescan.data.PickList;
+import ITM.maint.barcodescan.decoder.DecodedBarcode;
 import ITM.maint.barcodescan.common.preferences.PreferenceUtils;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -46,9 +50,31 @@ public class WorkflowModel extends AndroidViewModel {
         SEARCHED
     }
 
+    /** The most codes {@link #scannedBarcodes} holds; the oldest are dropped beyond it. */
+    public static final int MAX_SCANNED_BARCODES = SeenBarcodeSet.DEFAULT_CAPACITY;
+
     public final MutableLiveData<WorkflowState> workflowState = new MutableLiveData<>();
 
-    public final MutableLiveData<FirebaseVisionBarcode> detectedBarcode = new MutableLiveData<>();
+    public final MutableLiveData<DecodedBarcode> detectedBarcode = new MutableLiveData<>();
+
+    /**
+     * Asset details found for {@link #detectedBarcode}, or null if it was not looked up or is not a
+     * known asset. Always set before {@link #detectedBarcode}.
+     */
+    public final MutableLiveData<List<BarcodeField>> assetFields = new MutableLiveData<>();
+
+    /**
+     * Codes accepted in continuous scanning, newest first, at most {@link #MAX_SCANNED_BARCODES}.
+     * Each update is a new, unmodifiable list.
+     */
+    public final MutableLiveData<List<BarcodeField>> scannedBarcodes =
+            new MutableLiveData<>(Collections.emptyList());
+
+    /** Progress of the pick-list job, or null when pick-list verification is off. */
+    public final MutableLiveData<PickList.Progress> pickListProgress = new MutableLiveData<>();
+
+    /** Codes already in {@link #scannedBarcodes}, so repeated sightings are not listed again. */
+    public final SeenBarcodeSet seenBarcodes = new SeenBarcodeSet();
 
     private final Set<Integer> objectIdsToSearch = new HashSet<>();
 
@@ -64,6 +90,31 @@ public class WorkflowModel extends AndroidViewModel {
     }
 
 
+    /**
+     * Adds a code accepted in continuous scanning to the top of {@link #scannedBarcodes}, dropping
+     * the oldest one if the list is full.
+     */
+    @MainThread
+    public void addScannedBarcode(DecodedBarcode barcode) {
+        List<BarcodeField> current = scannedBarcodes.getValue();
+        int kept = current != null ? Math.min(current.size(), MAX_SCANNED_BARCODES - 1) : 0;
+        List<BarcodeField> updated = new ArrayList<>(kept + 1);
+        updated.add(new BarcodeField(
+                PreferenceUtils.getBarcodeFormatName(getContext(), barcode.getFormat()),
+                barcode.getRawValue()));
+        if (kept > 0) {
+            updated.addAll(current.subList(0, kept));
+        }
+        scannedBarcodes.setValue(Collections.unmodifiableList(updated));
+    }
+
+    /** Empties {@link #scannedBarcodes} and forgets the codes seen, e.g. when a session starts. */
+    @MainThread
+    public void clearScannedBarcodes() {
+        seenBarcodes.clear();
+        scannedBarcodes.setValue(Collections.emptyList());
+    }
+
     public void markCameraLive() {
         isCameraLive = true;
         objectIdsToSearch.clear();
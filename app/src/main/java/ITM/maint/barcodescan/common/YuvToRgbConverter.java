@@ -0,0 +1,189 @@
+package ITM.maint.barcodescan.common;
+
+import android.graphics.Bitmap;
+import android.hardware.camera2.CameraCharacteristics;
+import android.media.Image;
+
+import androidx.annotation.Nullable;
+
+import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts NV21 and YUV_420_888 frames straight to ARGB, rotating and mirroring in the same pass.
+ * The pixel buffers and the target {@link Bitmap} are kept and reused while the frame size stays
+ * the same, so steady-state conversion does not allocate.
+ *
+ * <p>Not thread safe. Without a {@link FrameBufferPool} the returned bitmap is overwritten by the
+ * next conversion, so callers that need to keep it must copy it. With a pool, every conversion
+ * leases its own bitmap and the caller returns it to the pool when done with it.
+ */
+public class YuvToRgbConverter {
+
+    @Nullable private final FrameBufferPool bufferPool;
+    private int[] argb;
+    private byte[] yBytes;
+    private byte[] uBytes;
+    private byte[] vBytes;
+    private Bitmap bitmap;
+
+    public YuvToRgbConverter() {
+        this(null);
+    }
+
+    public YuvToRgbConverter(@Nullable FrameBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /** Returns whether converted bitmaps are leased from {@code bufferPool}. */
+    boolean leasesFrom(@Nullable FrameBufferPool bufferPool) {
+        return this.bufferPool == bufferPool;
+    }
+
+    /** Converts an NV21 buffer described by {@code metadata}. */
+    public Bitmap convert(ByteBuffer nv21, FrameMetadata metadata) {
+        int width = metadata.getWidth();
+        int height = metadata.getHeight();
+        byte[] data;
+        int offset;
+        if (nv21.hasArray()) {
+            data = nv21.array();
+            offset = nv21.arrayOffset();
+        } else {
+            yBytes = ensureCapacity(yBytes, nv21.limit());
+            nv21.rewind();
+            nv21.get(yBytes, 0, nv21.limit());
+            data = yBytes;
+            offset = 0;
+        }
+        int chromaOffset = offset + width * height;
+        // NV21 stores chroma as interleaved V/U pairs after the luma plane.
+        return convert(
+                data, offset, width,
+                data, chromaOffset + 1, data, chromaOffset, width, 2,
+                metadata);
+    }
+
+    /** Converts a YUV_420_888 {@link Image}, honouring its plane row and pixel strides. */
+    public Bitmap convert(Image image, FrameMetadata metadata) {
+        Image.Plane[] planes = image.getPlanes();
+        yBytes = copyPlane(planes[0].getBuffer(), yBytes);
+        uBytes = copyPlane(planes[1].getBuffer(), uBytes);
+        vBytes = copyPlane(planes[2].getBuffer(), vBytes);
+        return convert(
+                yBytes, 0, planes[0].getRowStride(),
+                uBytes, 0, vBytes, 0, planes[1].getRowStride(), planes[1].getPixelStride(),
+                metadata);
+    }
+
+    private Bitmap convert(
+            byte[] y, int yOffset, int yRowStride,
+            byte[] u, int uOffset, byte[] v, int vOffset, int uvRowStride, int uvPixelStride,
+            FrameMetadata metadata) {
+        int width = metadata.getWidth();
+        int height = metadata.getHeight();
+        boolean swapped = metadata.getRotation() == FirebaseVisionImageMetadata.ROTATION_90
+                || metadata.getRotation() == FirebaseVisionImageMetadata.ROTATION_270;
+        int targetWidth = swapped ? height : width;
+        int targetHeight = swapped ? width : height;
+
+        // The target index is linear in the source coordinates: base + x * xStep + y * yStep.
+        int base;
+        int xStep;
+        int yStep;
+        switch (metadata.getRotation()) {
+            case FirebaseVisionImageMetadata.ROTATION_90:
+                base = targetWidth - 1;
+                xStep = targetWidth;
+                yStep = -1;
+                break;
+            case FirebaseVisionImageMetadata.ROTATION_180:
+                base = targetWidth * targetHeight - 1;
+                xStep = -1;
+                yStep = -targetWidth;
+                break;
+            case FirebaseVisionImageMetadata.ROTATION_270:
+                base = (targetHeight - 1) * targetWidth;
+                xStep = -targetWidth;
+                yStep = 1;
+                break;
+            default:
+                base = 0;
+                xStep = 1;
+                yStep = targetWidth;
+                break;
+        }
+        if (metadata.getCameraFacing() == CameraCharacteristics.LENS_FACING_FRONT) {
+            // Mirror along the X axis of the rotated image. The mirrored index is still linear in
+            // the source coordinates, so only the base and steps change.
+            int mirroredBase = mirror(base, targetWidth);
+            xStep = mirror(base + xStep, targetWidth) - mirroredBase;
+            yStep = mirror(base + yStep, targetWidth) - mirroredBase;
+            base = mirroredBase;
+        }
+
+        argb = ensureCapacity(argb, width * height);
+        int[] out = argb;
+        for (int row = 0; row < height; row++) {
+            int yIndex = yOffset + row * yRowStride;
+            int uvRow = (row >> 1) * uvRowStride;
+            int target = base + row * yStep;
+            for (int col = 0; col < width; col++) {
+                int uvIndex = uvRow + (col >> 1) * uvPixelStride;
+                out[target] = toArgb(y[yIndex + col], u[uOffset + uvIndex], v[vOffset + uvIndex]);
+                target += xStep;
+            }
+        }
+
+        Bitmap target;
+        if (bufferPool != null) {
+            target = bufferPool.acquireBitmap(targetWidth, targetHeight);
+        } else {
+            if (bitmap == null
+                    || bitmap.getWidth() != targetWidth
+                    || bitmap.getHeight() != targetHeight) {
+                bitmap = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+            }
+            target = bitmap;
+        }
+        target.setPixels(out, 0, targetWidth, 0, 0, targetWidth, targetHeight);
+        return target;
+    }
+
+    private static int mirror(int index, int targetWidth) {
+        int column = Math.floorMod(index, targetWidth);
+        return index - column + (targetWidth - 1 - column);
+    }
+
+    /** Converts one BT.601 limited-range YUV sample to opaque ARGB using fixed-point arithmetic. */
+    private static int toArgb(byte yValue, byte uValue, byte vValue) {
+        int y = Math.max((yValue & 0xff) - 16, 0) * 1192;
+        int u = (uValue & 0xff) - 128;
+        int v = (vValue & 0xff) - 128;
+        int r = clamp(y + 1634 * v);
+        int g = clamp(y - 833 * v - 400 * u);
+        int b = clamp(y + 2066 * u);
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 262143 ? 262143 : value);
+    }
+
+    private static byte[] copyPlane(ByteBuffer plane, byte[] target) {
+        plane.rewind();
+        byte[] bytes = ensureCapacity(target, plane.remaining());
+        plane.get(bytes, 0, plane.remaining());
+        plane.rewind();
+        return bytes;
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int size) {
+        return buffer != null && buffer.length >= size ? buffer : new byte[size];
+    }
+
+    private static int[] ensureCapacity(int[] buffer, int size) {
+        return buffer != null && buffer.length >= size ? buffer : new int[size];
+    }
+}
@@ -14,6 +14,7 @@ import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
 import ITM.maint.barcodescan.R;
 import ITM.maint.barcodescan.common.CameraSource;
 import ITM.maint.barcodescan.common.GraphicOverlay;
+import ITM.maint.barcodescan.decoder.DecodedBarcode;
 import ITM.maint.barcodescan.common.CameraSource;
 
 
@@ -30,44 +31,77 @@ public class PreferenceUtils {
 
 
 
+    /** Returns a copy of the reticle box for {@code overlay} that the caller may modify. */
     public static RectF getBarcodeReticleBox(GraphicOverlay overlay) {
-        Context context = overlay.getContext();
-        float overlayWidth = overlay.getWidth();
-        float overlayHeight = overlay.getHeight();
-        float boxWidth =
-                overlayWidth * getIntPref(context, R.string.pref_key_barcode_reticle_width, 80) / 100;
-        float boxHeight =
-                overlayHeight * getIntPref(context, R.string.pref_key_barcode_reticle_height, 35) / 100;
-        float cx = overlayWidth / 2;
-        float cy = overlayHeight / 2;
-        return new RectF(cx - boxWidth / 2, cy - boxHeight / 2, cx + boxWidth / 2, cy + boxHeight / 2);
+        return new RectF(
+                ScanSettings.get(overlay.getContext())
+                        .getReticleBox(overlay.getWidth(), overlay.getHeight()));
     }
 
-    public static boolean shouldDelayLoadingBarcodeResult(Context context) {
-        return getBooleanPref(context, R.string.pref_key_delay_loading_barcode_result, true);
+    /**
+     * Returns the {@link FirebaseVisionBarcode} format flags selected in settings, or {@link
+     * FirebaseVisionBarcode#FORMAT_ALL_FORMATS} if none are selected.
+     */
+    public static int getBarcodeFormats(Context context) {
+        return ScanSettings.get(context).barcodeFormats;
     }
 
-    private static int getIntPref(Context context, @StringRes int prefKeyId, int defaultValue) {
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        String prefKey = context.getString(prefKeyId);
-        return sharedPreferences.getInt(prefKey, defaultValue);
+    /** Returns the display name of a {@link FirebaseVisionBarcode} format, as listed in settings. */
+    public static String getBarcodeFormatName(Context context, int format) {
+        String[] names = context.getResources().getStringArray(R.array.pref_entries_barcode_formats);
+        String[] values =
+                context.getResources().getStringArray(R.array.pref_entry_values_barcode_formats);
+        String formatValue = String.valueOf(format);
+        for (int i = 0; i < values.length && i < names.length; i++) {
+            if (values[i].equals(formatValue)) {
+                return names[i];
+            }
+        }
+        return formatValue;
     }
 
-    private static boolean getBooleanPref(
-            Context context, @StringRes int prefKeyId, boolean defaultValue) {
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        String prefKey = context.getString(prefKeyId);
-        return sharedPreferences.getBoolean(prefKey, defaultValue);
+    public static boolean isContinuousScanEnabled(Context context) {
+        return ScanSettings.get(context).continuousScan;
+    }
+
+    public static boolean isPickListVerificationEnabled(Context context) {
+        return ScanSettings.get(context).pickListVerification;
+    }
+
+    public static boolean isPerformanceHudEnabled(Context context) {
+        return ScanSettings.get(context).performanceHud;
+    }
+
+    public static boolean isAdaptiveQualityEnabled(Context context) {
+        return ScanSettings.get(context).adaptiveQuality;
+    }
+
+    /** Returns where analysis frames come from, one of the {@code ScanSettings.FRAME_SOURCE_} values. */
+    public static String getFrameSource(Context context) {
+        return ScanSettings.get(context).frameSource;
+    }
+
+    /** Returns the decoder backend selected in settings, one of the {@code BarcodeDecoders.BACKEND_} values. */
+    public static String getDecoderBackend(Context context) {
+        return ScanSettings.get(context).decoderBackend;
+    }
+
+    public static boolean shouldCropToReticle(Context context) {
+        return ScanSettings.get(context).cropToReticle;
+    }
+
+    public static boolean shouldDelayLoadingBarcodeResult(Context context) {
+        return ScanSettings.get(context).delayLoadingBarcodeResult;
     }
 
     public static float getProgressToMeetBarcodeSizeRequirement(
-            GraphicOverlay overlay, FirebaseVisionBarcode barcode) {
-        Context context = overlay.getContext();
-        if (getBooleanPref(context, R.string.pref_key_enable_barcode_size_check, false)) {
-            float reticleBoxWidth = getBarcodeReticleBox(overlay).width();
+            GraphicOverlay overlay, DecodedBarcode barcode) {
+        ScanSettings settings = ScanSettings.get(overlay.getContext());
+        if (settings.barcodeSizeCheckEnabled) {
+            float reticleBoxWidth =
+                    settings.getReticleBox(overlay.getWidth(), overlay.getHeight()).width();
             float barcodeWidth = overlay.translateX(barcode.getBoundingBox().width());
-            float requiredWidth =
-                    reticleBoxWidth * getIntPref(context, R.string.pref_key_minimum_barcode_width, 50) / 100;
+            float requiredWidth = reticleBoxWidth * settings.minimumBarcodeWidthPercent / 100;
             return Math.min(barcodeWidth / requiredWidth, 1);
         } else {
             return 1;
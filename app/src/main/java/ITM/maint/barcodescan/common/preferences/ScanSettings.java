@@ -0,0 +1,186 @@
+package ITM.maint.barcodescan.common.preferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.RectF;
+import android.preference.PreferenceManager;
+
+import androidx.annotation.StringRes;
+
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
+
+import java.util.Set;
+
+import ITM.maint.barcodescan.R;
+import ITM.maint.barcodescan.common.LumaPrefilter;
+import ITM.maint.barcodescan.decoder.BarcodeDecoders;
+
+/**
+ * An immutable snapshot of the scan settings read on the per-frame path. The snapshot is loaded
+ * once and replaced whenever a preference changes, so frame processing never touches
+ * {@link SharedPreferences} or string resources.
+ */
+public final class ScanSettings {
+
+    // Our maintenance labels are Code 128 and QR; matches pref_default_values_barcode_formats.
+    private static final int DEFAULT_BARCODE_FORMATS =
+            FirebaseVisionBarcode.FORMAT_CODE_128 | FirebaseVisionBarcode.FORMAT_QR_CODE;
+
+    public static final String FRAME_SOURCE_CAMERA = "camera";
+    public static final String FRAME_SOURCE_REPLAY = "replay";
+    public static final String FRAME_SOURCE_REPLAY_UNBOUNDED = "replay_unbounded";
+
+    private static volatile ScanSettings current;
+
+    // SharedPreferences only keeps weak references to its listeners, so hold on to ours.
+    private static SharedPreferences.OnSharedPreferenceChangeListener changeListener;
+
+    public final int reticleWidthPercent;
+    public final int reticleHeightPercent;
+    public final boolean barcodeSizeCheckEnabled;
+    public final int minimumBarcodeWidthPercent;
+    public final boolean delayLoadingBarcodeResult;
+    public final boolean cropToReticle;
+    public final int consensusVotes;
+    // Never smaller than consensusVotes.
+    public final int consensusWindow;
+    public final int barcodeFormats;
+    // One of the BarcodeDecoders.BACKEND_ values.
+    public final String decoderBackend;
+    public final boolean continuousScan;
+    public final LumaPrefilter.Preset prefilterPreset;
+    public final boolean pickListVerification;
+    public final boolean performanceHud;
+    public final boolean adaptiveQuality;
+    // One of the FRAME_SOURCE_ values.
+    public final String frameSource;
+
+    // The reticle box for the last overlay size asked for.
+    private volatile ReticleBox reticleBox;
+
+    private static class ReticleBox {
+        final int overlayWidth;
+        final int overlayHeight;
+        final RectF box;
+
+        ReticleBox(int overlayWidth, int overlayHeight, RectF box) {
+            this.overlayWidth = overlayWidth;
+            this.overlayHeight = overlayHeight;
+            this.box = box;
+        }
+    }
+
+    private ScanSettings(Context context, SharedPreferences sharedPreferences) {
+        reticleWidthPercent =
+                getInt(context, sharedPreferences, R.string.pref_key_barcode_reticle_width, 80);
+        reticleHeightPercent =
+                getInt(context, sharedPreferences, R.string.pref_key_barcode_reticle_height, 35);
+        barcodeSizeCheckEnabled =
+                getBoolean(context, sharedPreferences, R.string.pref_key_enable_barcode_size_check, false);
+        minimumBarcodeWidthPercent =
+                getInt(context, sharedPreferences, R.string.pref_key_minimum_barcode_width, 50);
+        delayLoadingBarcodeResult =
+                getBoolean(context, sharedPreferences, R.string.pref_key_delay_loading_barcode_result, true);
+        cropToReticle =
+                getBoolean(context, sharedPreferences, R.string.pref_key_crop_to_reticle, true);
+        consensusVotes = getInt(context, sharedPreferences, R.string.pref_key_consensus_votes, 3);
+        consensusWindow = Math.max(
+                consensusVotes,
+                getInt(context, sharedPreferences, R.string.pref_key_consensus_window, 5));
+        barcodeFormats = readBarcodeFormats(context, sharedPreferences);
+        decoderBackend = sharedPreferences.getString(
+                context.getString(R.string.pref_key_decoder_backend), BarcodeDecoders.BACKEND_AUTO);
+        continuousScan =
+                getBoolean(context, sharedPreferences, R.string.pref_key_continuous_scan, false);
+        prefilterPreset = readPrefilterPreset(context, sharedPreferences);
+        pickListVerification =
+                getBoolean(context, sharedPreferences, R.string.pref_key_pick_list, false);
+        performanceHud =
+                getBoolean(context, sharedPreferences, R.string.pref_key_performance_hud, false);
+        adaptiveQuality =
+                getBoolean(context, sharedPreferences, R.string.pref_key_adaptive_quality, true);
+        frameSource = sharedPreferences.getString(
+                context.getString(R.string.pref_key_frame_source), FRAME_SOURCE_CAMERA);
+    }
+
+    /** Returns the current settings, loading them and starting to track changes on first use. */
+    public static ScanSettings get(Context context) {
+        ScanSettings settings = current;
+        if (settings != null) {
+            return settings;
+        }
+        synchronized (ScanSettings.class) {
+            if (current == null) {
+                Context appContext = context.getApplicationContext();
+                SharedPreferences sharedPreferences =
+                        PreferenceManager.getDefaultSharedPreferences(appContext);
+                changeListener =
+                        (preferences, key) -> current = new ScanSettings(appContext, preferences);
+                sharedPreferences.registerOnSharedPreferenceChangeListener(changeListener);
+                current = new ScanSettings(appContext, sharedPreferences);
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Returns the reticle box for an overlay of the given size. The box is shared between callers
+     * and must not be modified.
+     */
+    public RectF getReticleBox(int overlayWidth, int overlayHeight) {
+        ReticleBox cached = reticleBox;
+        if (cached != null
+                && cached.overlayWidth == overlayWidth
+                && cached.overlayHeight == overlayHeight) {
+            return cached.box;
+        }
+        float boxWidth = overlayWidth * reticleWidthPercent / 100f;
+        float boxHeight = overlayHeight * reticleHeightPercent / 100f;
+        float cx = overlayWidth / 2f;
+        float cy = overlayHeight / 2f;
+        RectF box =
+                new RectF(cx - boxWidth / 2, cy - boxHeight / 2, cx + boxWidth / 2, cy + boxHeight / 2);
+        reticleBox = new ReticleBox(overlayWidth, overlayHeight, box);
+        return box;
+    }
+
+    private static int readBarcodeFormats(Context context, SharedPreferences sharedPreferences) {
+        Set<String> formatValues =
+                sharedPreferences.getStringSet(
+                        context.getString(R.string.pref_key_barcode_formats), null);
+        if (formatValues == null) {
+            return DEFAULT_BARCODE_FORMATS;
+        }
+        int formats = 0;
+        for (String formatValue : formatValues) {
+            formats |= Integer.parseInt(formatValue);
+        }
+        return formats != 0 ? formats : FirebaseVisionBarcode.FORMAT_ALL_FORMATS;
+    }
+
+    private static LumaPrefilter.Preset readPrefilterPreset(
+            Context context, SharedPreferences sharedPreferences) {
+        String name = sharedPreferences.getString(
+                context.getString(R.string.pref_key_prefilter), null);
+        if (name != null) {
+            for (LumaPrefilter.Preset preset : LumaPrefilter.Preset.values()) {
+                if (preset.name().equals(name)) {
+                    return preset;
+                }
+            }
+        }
+        return LumaPrefilter.Preset.LENIENT;
+    }
+
+    private static int getInt(
+            Context context, SharedPreferences sharedPreferences, @StringRes int prefKeyId,
+            int defaultValue) {
+        return sharedPreferences.getInt(context.getString(prefKeyId), defaultValue);
+    }
+
+    private static boolean getBoolean(
+            Context context, SharedPreferences sharedPreferences, @StringRes int prefKeyId,
+            boolean defaultValue) {
+        return sharedPreferences.getBoolean(context.getString(prefKeyId), defaultValue);
+    }
+}
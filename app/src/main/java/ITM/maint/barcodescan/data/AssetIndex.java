@@ -0,0 +1,158 @@
+package ITM.maint.barcodescan.data;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import ITM.maint.barcodescan.BarcodeField;
+
+/**
+ * A read-only barcode to asset index, memory-mapped from a file written by
+ * {@link AssetIndexBuilder}. Nothing but the column names is copied onto the heap: a lookup binary
+ * searches the slot table for the code's hash and decodes the one matching record, touching a few
+ * pages of the file. Lookups only use absolute reads, so they are safe from any thread.
+ *
+ * <p>File layout, big-endian:
+ *
+ * <pre>
+ * header    int magic, int version, int recordCount, int columnCount,
+ *           long slotsOffset, long recordsOffset
+ * columns   columnCount x (u16 length, UTF-8 name)
+ * slots     recordCount x (long hash, int record offset), sorted by hash
+ * records   u16 length, UTF-8 barcode, then columnCount x (u16 length, UTF-8 value)
+ * </pre>
+ */
+public final class AssetIndex {
+
+    static final int MAGIC = 0x42534149; // "BSAI"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int SLOT_SIZE = 12;
+
+    private final MappedByteBuffer buffer;
+    private final int recordCount;
+    private final String[] columns;
+    private final long slotsOffset;
+    private final long recordsOffset;
+
+    private AssetIndex(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not an asset index");
+        }
+        recordCount = buffer.getInt(8);
+        columns = new String[buffer.getInt(12)];
+        slotsOffset = buffer.getLong(16);
+        recordsOffset = buffer.getLong(24);
+        int position = HEADER_SIZE;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = readString(buffer, position);
+            position += 2 + (buffer.getShort(position) & 0xffff);
+        }
+        if (slotsOffset + (long) recordCount * SLOT_SIZE > recordsOffset
+                || recordsOffset > buffer.capacity()) {
+            throw new IOException("Corrupt asset index");
+        }
+    }
+
+    /** Maps {@code file}. The mapping stays valid after the file is closed or replaced. */
+    public static AssetIndex open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            return new AssetIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int size() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the asset fields for {@code barcode}, one per column of the export, or null if the
+     * code is not in the index.
+     */
+    @Nullable
+    public List<BarcodeField> lookup(String barcode) {
+        byte[] key = barcode.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(key);
+        // Find the first slot with this hash; collisions sit next to it.
+        int low = 0;
+        int high = recordCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (slotHash(mid) < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int slot = low; slot < recordCount && slotHash(slot) == hash; slot++) {
+            int record = (int) (recordsOffset + buffer.getInt(slotPosition(slot) + 8));
+            if (keyEquals(record, key)) {
+                return readFields(record + 2 + key.length);
+            }
+        }
+        return null;
+    }
+
+    /** 64-bit FNV-1a, which spreads short numeric codes well enough for a sorted slot table. */
+    static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private int slotPosition(int slot) {
+        return (int) (slotsOffset + (long) slot * SLOT_SIZE);
+    }
+
+    private long slotHash(int slot) {
+        return buffer.getLong(slotPosition(slot));
+    }
+
+    private boolean keyEquals(int record, byte[] key) {
+        if ((buffer.getShort(record) & 0xffff) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(record + 2 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<BarcodeField> readFields(int position) {
+        List<BarcodeField> fields = new ArrayList<>(columns.length);
+        for (String column : columns) {
+            String value = readString(buffer, position);
+            position += 2 + (buffer.getShort(position) & 0xffff);
+            if (!value.isEmpty()) {
+                fields.add(new BarcodeField(column, value));
+            }
+        }
+        return fields;
+    }
+
+    private static String readString(ByteBuffer buffer, int position) {
+        int length = buffer.getShort(position) & 0xffff;
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(position + 2);
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,234 @@
+package ITM.maint.barcodescan.data;
+
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes an {@link AssetIndex} file from a CSV asset export. The first row names the columns, the
+ * first column holds the barcode and the remaining columns become the asset fields. Records are
+ * streamed to a scratch file as they are parsed, so only one hash and offset per asset stays on the
+ * heap while the slot table is sorted.
+ */
+public final class AssetIndexBuilder {
+
+    // Record offsets are stored as ints.
+    private static final long MAX_RECORDS_SIZE = Integer.MAX_VALUE;
+    private static final int MAX_STRING_BYTES = 0xffff;
+
+    private AssetIndexBuilder() {}
+
+    /**
+     * Builds the index for {@code csv} into {@code output}. The file is written next to it first
+     * and moved into place when complete, so readers never see a half-written index. Returns the
+     * number of assets written.
+     */
+    @WorkerThread
+    public static int build(Reader csv, File output) throws IOException {
+        CsvReader reader = new CsvReader(csv);
+        List<String> row = new ArrayList<>();
+        if (!reader.readRow(row) || row.isEmpty()) {
+            throw new IOException("Asset export has no header row");
+        }
+        List<String> columns = new ArrayList<>(row.subList(1, row.size()));
+
+        File records = new File(output.getPath() + ".records");
+        File partial = new File(output.getPath() + ".partial");
+        long[] hashes = new long[1024];
+        int[] offsets = new int[1024];
+        int count = 0;
+        try {
+            long recordsSize = 0;
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(records)))) {
+                while (reader.readRow(row)) {
+                    if (row.isEmpty() || row.get(0).isEmpty()) {
+                        continue;
+                    }
+                    byte[] key = row.get(0).getBytes(StandardCharsets.UTF_8);
+                    if (count == hashes.length) {
+                        hashes = Arrays.copyOf(hashes, count * 2);
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                    }
+                    hashes[count] = AssetIndex.hash(key);
+                    offsets[count] = (int) recordsSize;
+                    count++;
+                    recordsSize += writeString(out, key);
+                    for (int i = 1; i <= columns.size(); i++) {
+                        String value = i < row.size() ? row.get(i) : "";
+                        recordsSize += writeString(out, value.getBytes(StandardCharsets.UTF_8));
+                    }
+                    if (recordsSize > MAX_RECORDS_SIZE) {
+                        throw new IOException("Asset export too large for one index");
+                    }
+                }
+            }
+            sortByHash(hashes, offsets, 0, count - 1);
+
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(partial)))) {
+                long columnsSize = 0;
+                byte[][] columnNames = new byte[columns.size()][];
+                for (int i = 0; i < columnNames.length; i++) {
+                    columnNames[i] = columns.get(i).getBytes(StandardCharsets.UTF_8);
+                    columnsSize += 2 + columnNames[i].length;
+                }
+                long slotsOffset = AssetIndex.HEADER_SIZE + columnsSize;
+                long recordsOffset = slotsOffset + (long) count * AssetIndex.SLOT_SIZE;
+
+                out.writeInt(AssetIndex.MAGIC);
+                out.writeInt(AssetIndex.VERSION);
+                out.writeInt(count);
+                out.writeInt(columnNames.length);
+                out.writeLong(slotsOffset);
+                out.writeLong(recordsOffset);
+                for (byte[] columnName : columnNames) {
+                    writeString(out, columnName);
+                }
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(hashes[i]);
+                    out.writeInt(offsets[i]);
+                }
+                try (InputStream in = new BufferedInputStream(new FileInputStream(records))) {
+                    copy(in, out);
+                }
+            }
+            if (!partial.renameTo(output)) {
+                throw new IOException("Could not move asset index into place: " + output);
+            }
+            return count;
+        } finally {
+            records.delete();
+            partial.delete();
+        }
+    }
+
+    private static int writeString(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IOException("Asset field longer than " + MAX_STRING_BYTES + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+        return 2 + bytes.length;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+        }
+    }
+
+    /** Sorts the hashes in place, keeping each offset next to its hash. */
+    private static void sortByHash(long[] hashes, int[] offsets, int low, int high) {
+        while (low < high) {
+            long pivot = hashes[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (hashes[i] < pivot) {
+                    i++;
+                }
+                while (hashes[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    long hash = hashes[i];
+                    hashes[i] = hashes[j];
+                    hashes[j] = hash;
+                    int offset = offsets[i];
+                    offsets[i] = offsets[j];
+                    offsets[j] = offset;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller half only, so the stack stays shallow on 500k assets.
+            if (j - low < high - i) {
+                sortByHash(hashes, offsets, low, j);
+                low = i;
+            } else {
+                sortByHash(hashes, offsets, i, high);
+                high = j;
+            }
+        }
+    }
+
+    /** Reads RFC 4180 rows: comma separated, optionally quoted, "" escapes a quote. */
+    private static class CsvReader {
+        private final Reader reader;
+        private final StringBuilder field = new StringBuilder();
+        private final char[] chunk = new char[8192];
+        private int chunkLength;
+        private int chunkPosition;
+
+        CsvReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        /** Reads the next row into {@code row}. Returns false at the end of the input. */
+        boolean readRow(List<String> row) throws IOException {
+            row.clear();
+            field.setLength(0);
+            int c = read();
+            if (c == -1) {
+                return false;
+            }
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("Unterminated quote in asset export");
+                    } else if (c == '"') {
+                        c = read();
+                        if (c == '"') {
+                            field.append('"');
+                        } else {
+                            quoted = false;
+                            continue;
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    row.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n' || c == -1) {
+                    row.add(field.toString());
+                    return true;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+                c = read();
+            }
+        }
+
+        private int read() throws IOException {
+            if (chunkPosition == chunkLength) {
+                chunkLength = reader.read(chunk);
+                chunkPosition = 0;
+                if (chunkLength <= 0) {
+                    chunkLength = 0;
+                    return -1;
+                }
+            }
+            return chunk[chunkPosition++];
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ITM.maint.barcodescan.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import ITM.maint.barcodescan.AppExecutor;
+import ITM.maint.barcodescan.BarcodeField;
+
+/**
+ * Looks scanned codes up in the offline asset index. The asset export is dropped into the app's
+ * files directory as {@value #EXPORT_FILE_NAME}; whenever it is newer than the index, the index is
+ * rebuilt on the I/O thread when the app starts. Until an index is available every lookup finds
+ * nothing.
+ *
+ * <p>Lookups run on the lookup thread, so they never wait behind an index rebuild or other disk
+ * writes on the I/O thread; the index is read-only and safe to read from any thread.
+ */
+@Singleton
+public class AssetRepository {
+
+    private static final String TAG = "AssetRepository";
+
+    public static final String EXPORT_FILE_NAME = "assets.csv";
+    private static final String INDEX_FILE_NAME = "asset_index.bin";
+
+    /** Receives the result of a lookup on the main thread. */
+    public interface Callback {
+        /** {@code fields} is null if the code is not a known asset. */
+        void onResult(@Nullable List<BarcodeField> fields);
+    }
+
+    private final File exportFile;
+    private final File indexFile;
+    private final Executor ioExecutor;
+    private final Executor lookupExecutor;
+    private final Executor mainThreadExecutor;
+
+    @Nullable private volatile AssetIndex index;
+
+    @Inject
+    public AssetRepository(Context context, AppExecutor appExecutor) {
+        this.exportFile = new File(context.getFilesDir(), EXPORT_FILE_NAME);
+        this.indexFile = new File(context.getFilesDir(), INDEX_FILE_NAME);
+        this.ioExecutor = appExecutor.ioThread();
+        this.lookupExecutor = appExecutor.lookupThread();
+        this.mainThreadExecutor = appExecutor.mainThread();
+        ioExecutor.execute(this::open);
+    }
+
+    /** Looks {@code barcode} up off the main thread and hands the result to {@code callback}. */
+    @MainThread
+    public void lookup(@Nullable String barcode, Callback callback) {
+        lookupExecutor.execute(() -> {
+            AssetIndex current = index;
+            List<BarcodeField> fields = null;
+            if (current != null && barcode != null) {
+                try {
+                    fields = current.lookup(barcode);
+                } catch (RuntimeException e) {
+                    // A corrupt index can point outside the file; treat the code as unknown.
+                    Log.e(TAG, "Failed to look up " + barcode, e);
+                }
+            }
+            List<BarcodeField> result = fields;
+            mainThreadExecutor.execute(() -> callback.onResult(result));
+        });
+    }
+
+    @WorkerThread
+    private void open() {
+        if (exportFile.exists() && exportFile.lastModified() > indexFile.lastModified()) {
+            try (Reader reader = new InputStreamReader(
+                    new FileInputStream(exportFile), StandardCharsets.UTF_8)) {
+                long start = System.nanoTime();
+                int count = AssetIndexBuilder.build(reader, indexFile);
+                Log.d(TAG, "Indexed " + count + " assets in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to index " + exportFile, e);
+            }
+        }
+        if (!indexFile.exists()) {
+            return;
+        }
+        try {
+            index = AssetIndex.open(indexFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open " + indexFile, e);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package ITM.maint.barcodescan.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The codes expected in a pick-list job, and which of them were scanned so far. Codes are stored
+ * as 64-bit hashes in an open-addressing table with linear probing, so {@link #match} hashes the
+ * string's chars in place and probes a {@code long[]}: constant time and no allocation.
+ *
+ * <p>Counts are kept per code, not per sighting. A code seen again within {@link
+ * #SIGHTING_GAP_NANOS} of its last sighting is the same label still in view, e.g. one the
+ * decoder missed for a few frames, and is not counted again. Each unexpected code is counted once
+ * per job, as long as it is among the last {@value #UNEXPECTED_CAPACITY} unexpected codes.
+ */
+public final class PickList {
+
+    /** How a scanned code relates to the pick list. */
+    public enum Match {
+        /** On the list and scanned for the first time. */
+        EXPECTED,
+        /** Not on the list. */
+        UNEXPECTED,
+        /** On the list, already scanned, and seen again after it was out of view. */
+        DUPLICATE,
+        /** Seen again while still in view, or an unexpected code already counted. Not counted. */
+        REPEAT
+    }
+
+    /** Counts of a pick-list job. Immutable. */
+    public static final class Progress {
+        public final int expectedCount;
+        public final int scannedCount;
+        public final int unexpectedCount;
+        public final int duplicateCount;
+
+        Progress(int expectedCount, int scannedCount, int unexpectedCount, int duplicateCount) {
+            this.expectedCount = expectedCount;
+            this.scannedCount = scannedCount;
+            this.unexpectedCount = unexpectedCount;
+            this.duplicateCount = duplicateCount;
+        }
+    }
+
+    /** How long a code has to be out of view before seeing it again counts as a duplicate. */
+    public static final long SIGHTING_GAP_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    static final int UNEXPECTED_CAPACITY = 64;
+
+    // Marks an empty slot; a code that hashes to it is stored as 1 instead.
+    private static final long EMPTY = 0;
+
+    private final long[] keys;
+    private final boolean[] scanned;
+    // When each expected code was last seen, for scanned codes.
+    private final long[] lastSeenNanos;
+    // Unexpected codes already counted, oldest overwritten first.
+    private final long[] unexpectedKeys = new long[UNEXPECTED_CAPACITY];
+    private int unexpectedNext;
+    private final int mask;
+    private final int expectedCount;
+    private int scannedCount;
+    private int unexpectedCount;
+    private int duplicateCount;
+
+    public PickList(Collection<String> codes) {
+        // At most half full, so probe sequences stay short.
+        int capacity = Integer.highestOneBit(Math.max(codes.size(), 1) * 2 - 1) << 1;
+        keys = new long[capacity];
+        scanned = new boolean[capacity];
+        lastSeenNanos = new long[capacity];
+        mask = capacity - 1;
+        int count = 0;
+        for (String code : codes) {
+            int slot = findSlot(hash(code));
+            if (keys[slot] == EMPTY) {
+                keys[slot] = hash(code);
+                count++;
+            }
+        }
+        expectedCount = count;
+    }
+
+    /** Reads a pick list with one code per line. Blank lines are skipped. */
+    public static PickList load(File file) throws IOException {
+        List<String> codes = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    codes.add(line);
+                }
+            }
+        }
+        return new PickList(codes);
+    }
+
+    /**
+     * Classifies a sighting of {@code code} at {@code nowNanos} and counts it, unless it is a
+     * {@link Match#REPEAT}. Pass every sighting, so codes held in view stay recognised as such.
+     */
+    public synchronized Match match(String code, long nowNanos) {
+        long key = hash(code);
+        int slot = findSlot(key);
+        if (keys[slot] == EMPTY) {
+            return matchUnexpected(key);
+        }
+        if (!scanned[slot]) {
+            scanned[slot] = true;
+            lastSeenNanos[slot] = nowNanos;
+            scannedCount++;
+            return Match.EXPECTED;
+        }
+        long lastSeen = lastSeenNanos[slot];
+        lastSeenNanos[slot] = nowNanos;
+        if (nowNanos - lastSeen <= SIGHTING_GAP_NANOS) {
+            return Match.REPEAT;
+        }
+        duplicateCount++;
+        return Match.DUPLICATE;
+    }
+
+    private Match matchUnexpected(long key) {
+        for (long unexpectedKey : unexpectedKeys) {
+            if (unexpectedKey == key) {
+                return Match.REPEAT;
+            }
+        }
+        unexpectedKeys[unexpectedNext] = key;
+        unexpectedNext = (unexpectedNext + 1) % UNEXPECTED_CAPACITY;
+        unexpectedCount++;
+        return Match.UNEXPECTED;
+    }
+
+    public synchronized Progress getProgress() {
+        return new Progress(expectedCount, scannedCount, unexpectedCount, duplicateCount);
+    }
+
+    /** Forgets which codes were scanned, e.g. to run the job again. */
+    public synchronized void reset() {
+        for (int i = 0; i < scanned.length; i++) {
+            scanned[i] = false;
+            lastSeenNanos[i] = 0;
+        }
+        for (int i = 0; i < unexpectedKeys.length; i++) {
+            unexpectedKeys[i] = EMPTY;
+        }
+        unexpectedNext = 0;
+        scannedCount = 0;
+        unexpectedCount = 0;
+        duplicateCount = 0;
+    }
+
+    /** Returns the slot holding {@code key}, or the empty slot where it would go. */
+    private int findSlot(long key) {
+        int slot = (int) mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /** 64-bit FNV-1a over the UTF-16 chars, read in place. */
+    private static long hash(CharSequence code) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < code.length(); i++) {
+            hash ^= code.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    /** Spreads the hash's high bits into the low bits the slot index is taken from. */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,77 @@
+package ITM.maint.barcodescan.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import ITM.maint.barcodescan.AppExecutor;
+
+/**
+ * Loads the current pick-list job from {@value #PICK_LIST_FILE_NAME} in the app's files
+ * directory. The loaded list, and so the job's progress, is kept until the file changes.
+ */
+@Singleton
+public class PickListRepository {
+
+    private static final String TAG = "PickListRepository";
+
+    public static final String PICK_LIST_FILE_NAME = "pick_list.txt";
+
+    /** Receives the loaded pick list on the main thread. */
+    public interface Callback {
+        /** {@code pickList} is null if there is no pick list file or it could not be read. */
+        void onLoaded(@Nullable PickList pickList);
+    }
+
+    private final File pickListFile;
+    private final Executor ioExecutor;
+    private final Executor mainThreadExecutor;
+
+    // Only touched on the I/O thread.
+    @Nullable private PickList pickList;
+    private long loadedModified;
+
+    @Inject
+    public PickListRepository(Context context, AppExecutor appExecutor) {
+        this.pickListFile = new File(context.getFilesDir(), PICK_LIST_FILE_NAME);
+        this.ioExecutor = appExecutor.ioThread();
+        this.mainThreadExecutor = appExecutor.mainThread();
+    }
+
+    /** Loads the pick list off the main thread, unless it is loaded and unchanged. */
+    @MainThread
+    public void load(Callback callback) {
+        ioExecutor.execute(() -> {
+            PickList loaded = loadIfChanged();
+            mainThreadExecutor.execute(() -> callback.onLoaded(loaded));
+        });
+    }
+
+    @WorkerThread
+    @Nullable
+    private PickList loadIfChanged() {
+        long modified = pickListFile.lastModified();
+        if (modified == 0) {
+            pickList = null;
+        } else if (pickList == null || modified != loadedModified) {
+            try {
+                pickList = PickList.load(pickListFile);
+                loadedModified = modified;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read " + pickListFile, e);
+                pickList = null;
+            }
+        }
+        return pickList;
+    }
+}
@@ -0,0 +1,60 @@
+package ITM.maint.barcodescan.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * The SQLite file behind {@link ScanHistoryStore}. Runs in WAL mode so reads never wait for the
+ * batched writes, and with incremental auto-vacuum so compaction can hand pages back a few at a
+ * time instead of rewriting the whole file.
+ */
+class ScanHistoryDatabase extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "scan_history.db";
+    private static final int DATABASE_VERSION = 1;
+
+    static final String TABLE_SCANS = "scans";
+    static final String COLUMN_ID = "_id";
+    static final String COLUMN_VALUE = "value";
+    static final String COLUMN_FORMAT = "format";
+    static final String COLUMN_TIMESTAMP = "timestamp";
+    static final String COLUMN_BOX_LEFT = "box_left";
+    static final String COLUMN_BOX_TOP = "box_top";
+    static final String COLUMN_BOX_RIGHT = "box_right";
+    static final String COLUMN_BOX_BOTTOM = "box_bottom";
+    static final String COLUMN_SESSION_ID = "session_id";
+
+    ScanHistoryDatabase(Context context) {
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Only takes effect before the first table is created, i.e. on a new file.
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_SCANS + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_VALUE + " TEXT, "
+                + COLUMN_FORMAT + " INTEGER NOT NULL, "
+                + COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + COLUMN_BOX_LEFT + " INTEGER, "
+                + COLUMN_BOX_TOP + " INTEGER, "
+                + COLUMN_BOX_RIGHT + " INTEGER, "
+                + COLUMN_BOX_BOTTOM + " INTEGER, "
+                + COLUMN_SESSION_ID + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX index_scans_value ON " + TABLE_SCANS + " (" + COLUMN_VALUE + ")");
+        db.execSQL(
+                "CREATE INDEX index_scans_timestamp ON " + TABLE_SCANS + " (" + COLUMN_TIMESTAMP + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // No released schema changes yet.
+    }
+}
@@ -0,0 +1,216 @@
+package ITM.maint.barcodescan.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Rect;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import ITM.maint.barcodescan.AppExecutor;
+
+import static ITM.maint.barcodescan.data.ScanHistoryDatabase.COLUMN_BOX_BOTTOM;
+import static ITM.maint.barcodescan.data.ScanHistoryDatabase.COLUMN_BOX_LEFT;
+import static ITM.maint.barcodescan.data.ScanHistoryDatabase.COLUMN_BOX_RIGHT;
+import static ITM.maint.barcodescan.data.ScanHistoryDatabase.COLUMN_BOX_TOP;
+import static ITM.maint.barcodescan.data.ScanHistoryDatabase.COLUMN_FORMAT;
+import static ITM.maint.barcodescan.data.ScanHistoryDatabase.COLUMN_ID;
+import static ITM.maint.barcodescan.data.ScanHistoryDatabase.COLUMN_SESSION_ID;
+import static ITM.maint.barcodescan.data.ScanHistoryDatabase.COLUMN_TIMESTAMP;
+import static ITM.maint.barcodescan.data.ScanHistoryDatabase.COLUMN_VALUE;
+import static ITM.maint.barcodescan.data.ScanHistoryDatabase.TABLE_SCANS;
+
+/**
+ * Keeps a local history of accepted scans. {@link #record} only queues the scan and returns, so it
+ * is safe on the detection and UI threads. Queued scans are written behind on the I/O thread, each
+ * batch in a single transaction: while one batch is being written, the scans arriving meanwhile
+ * collect into the next.
+ *
+ * <p>Every {@link #COMPACT_EVERY_INSERTS} inserts, and once when the store opens, the I/O thread
+ * drops scans older than {@link #RETENTION_DAYS} days or beyond the newest {@link #MAX_ROWS}, and
+ * returns the freed pages to the file system.
+ */
+@Singleton
+public class ScanHistoryStore {
+
+    private static final String TAG = "ScanHistoryStore";
+
+    public static final int RETENTION_DAYS = 90;
+    public static final int MAX_ROWS = 50_000;
+    // Scans waiting for the disk beyond this are dropped rather than letting the queue grow.
+    private static final int MAX_PENDING = 1000;
+    private static final int COMPACT_EVERY_INSERTS = 500;
+
+    private static final String INSERT_SCAN = "INSERT INTO " + TABLE_SCANS + " ("
+            + COLUMN_VALUE + ", " + COLUMN_FORMAT + ", " + COLUMN_TIMESTAMP + ", "
+            + COLUMN_BOX_LEFT + ", " + COLUMN_BOX_TOP + ", " + COLUMN_BOX_RIGHT + ", "
+            + COLUMN_BOX_BOTTOM + ", " + COLUMN_SESSION_ID + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final ScanHistoryDatabase database;
+    private final Executor ioExecutor;
+    private final ConcurrentLinkedQueue<ScanRecord> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // Only touched on the I/O thread.
+    @Nullable private SQLiteStatement insertStatement;
+    private int insertsSinceCompaction;
+
+    @Inject
+    public ScanHistoryStore(Context context, AppExecutor appExecutor) {
+        this.database = new ScanHistoryDatabase(context);
+        this.ioExecutor = appExecutor.ioThread();
+        ioExecutor.execute(this::compact);
+    }
+
+    /** Queues {@code scan} to be written. Never blocks. */
+    public void record(ScanRecord scan) {
+        if (pendingCount.incrementAndGet() > MAX_PENDING) {
+            pendingCount.decrementAndGet();
+            Log.w(TAG, "Scan history is backed up, dropping " + scan);
+            return;
+        }
+        pending.add(scan);
+        if (flushScheduled.compareAndSet(false, true)) {
+            ioExecutor.execute(this::flush);
+        }
+    }
+
+    /** Returns the newest scans, newest first. Reads the database, so never call on the UI thread. */
+    @WorkerThread
+    public List<ScanRecord> getRecent(int limit) {
+        List<ScanRecord> scans = new ArrayList<>();
+        try (Cursor cursor = database.getReadableDatabase().query(
+                TABLE_SCANS, null, null, null, null, null,
+                COLUMN_TIMESTAMP + " DESC", String.valueOf(limit))) {
+            int valueIndex = cursor.getColumnIndexOrThrow(COLUMN_VALUE);
+            int formatIndex = cursor.getColumnIndexOrThrow(COLUMN_FORMAT);
+            int timestampIndex = cursor.getColumnIndexOrThrow(COLUMN_TIMESTAMP);
+            int leftIndex = cursor.getColumnIndexOrThrow(COLUMN_BOX_LEFT);
+            int topIndex = cursor.getColumnIndexOrThrow(COLUMN_BOX_TOP);
+            int rightIndex = cursor.getColumnIndexOrThrow(COLUMN_BOX_RIGHT);
+            int bottomIndex = cursor.getColumnIndexOrThrow(COLUMN_BOX_BOTTOM);
+            int sessionIndex = cursor.getColumnIndexOrThrow(COLUMN_SESSION_ID);
+            while (cursor.moveToNext()) {
+                Rect box = cursor.isNull(leftIndex)
+                        ? null
+                        : new Rect(
+                                cursor.getInt(leftIndex),
+                                cursor.getInt(topIndex),
+                                cursor.getInt(rightIndex),
+                                cursor.getInt(bottomIndex));
+                scans.add(new ScanRecord(
+                        cursor.getString(valueIndex),
+                        cursor.getInt(formatIndex),
+                        cursor.getLong(timestampIndex),
+                        box,
+                        cursor.getLong(sessionIndex)));
+            }
+        }
+        return scans;
+    }
+
+    @WorkerThread
+    private void flush() {
+        // Cleared before draining, so a scan queued from here on schedules the next flush.
+        flushScheduled.set(false);
+        List<ScanRecord> batch = new ArrayList<>();
+        ScanRecord scan;
+        while ((scan = pending.poll()) != null) {
+            batch.add(scan);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        pendingCount.addAndGet(-batch.size());
+        try {
+            writeBatch(batch);
+        } catch (SQLException e) {
+            Log.e(TAG, "Failed to write " + batch.size() + " scans", e);
+            return;
+        }
+        insertsSinceCompaction += batch.size();
+        if (insertsSinceCompaction >= COMPACT_EVERY_INSERTS) {
+            compact();
+        }
+    }
+
+    @WorkerThread
+    private void writeBatch(List<ScanRecord> batch) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        if (insertStatement == null) {
+            insertStatement = db.compileStatement(INSERT_SCAN);
+        }
+        SQLiteStatement statement = insertStatement;
+        db.beginTransactionNonExclusive();
+        try {
+            for (ScanRecord scan : batch) {
+                statement.clearBindings();
+                if (scan.value != null) {
+                    statement.bindString(1, scan.value);
+                }
+                statement.bindLong(2, scan.format);
+                statement.bindLong(3, scan.timestampMillis);
+                if (scan.boundingBox != null) {
+                    statement.bindLong(4, scan.boundingBox.left);
+                    statement.bindLong(5, scan.boundingBox.top);
+                    statement.bindLong(6, scan.boundingBox.right);
+                    statement.bindLong(7, scan.boundingBox.bottom);
+                }
+                statement.bindLong(8, scan.sessionId);
+                statement.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @WorkerThread
+    private void compact() {
+        insertsSinceCompaction = 0;
+        try {
+            SQLiteDatabase db = database.getWritableDatabase();
+            long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(RETENTION_DAYS);
+            int expired = db.delete(
+                    TABLE_SCANS, COLUMN_TIMESTAMP + " < ?", new String[] {String.valueOf(cutoff)});
+            // Ids only grow, so everything at or below the MAX_ROWS-th newest id is surplus.
+            int surplus = db.delete(
+                    TABLE_SCANS,
+                    COLUMN_ID + " <= (SELECT " + COLUMN_ID + " FROM " + TABLE_SCANS
+                            + " ORDER BY " + COLUMN_ID + " DESC LIMIT 1 OFFSET " + MAX_ROWS + ")",
+                    null);
+            if (expired + surplus > 0) {
+                runPragma(db, "PRAGMA incremental_vacuum");
+                runPragma(db, "PRAGMA wal_checkpoint(TRUNCATE)");
+                Log.d(TAG, "Compacted scan history: " + expired + " expired, " + surplus + " surplus");
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Failed to compact scan history", e);
+        }
+    }
+
+    /** Runs a pragma that returns rows, which {@link SQLiteDatabase#execSQL} refuses. */
+    private static void runPragma(SQLiteDatabase db, String pragma) {
+        try (Cursor cursor = db.rawQuery(pragma, null)) {
+            while (cursor.moveToNext()) {
+                // Stepping through the rows is what runs the pragma.
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package ITM.maint.barcodescan.data;
+
+import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
+/** One accepted scan, as kept in the scan history. */
+public final class ScanRecord {
+
+    @Nullable public final String value;
+    public final int format;
+    public final long timestampMillis;
+    // Bounding box in upright analysis frame pixels, or null if the detector gave none.
+    @Nullable public final Rect boundingBox;
+    // Identifies the camera session the scan was taken in.
+    public final long sessionId;
+
+    public ScanRecord(
+            @Nullable String value,
+            int format,
+            long timestampMillis,
+            @Nullable Rect boundingBox,
+            long sessionId) {
+        this.value = value;
+        this.format = format;
+        this.timestampMillis = timestampMillis;
+        this.boundingBox = boundingBox;
+        this.sessionId = sessionId;
+    }
+
+    @Override
+    public String toString() {
+        return "ScanRecord{" + format + ":" + value + " @" + timestampMillis
+                + ", session=" + sessionId + "}";
+    }
+}
@@ -0,0 +1,30 @@
+package ITM.maint.barcodescan.decoder;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+import ITM.maint.barcodescan.common.ReticleCropper.CroppedFrame;
+
+/**
+ * A barcode decoding backend. {@link ITM.maint.barcodescan.BarcodeProcessor} sends one frame at a
+ * time and keeps the frame's buffer alive until the callback has run.
+ */
+public interface BarcodeDecoder {
+
+    /** Receives the result of one {@link #decode} call, exactly once, on any thread. */
+    interface Callback {
+        void onDecoded(@NonNull List<DecodedBarcode> barcodes);
+
+        void onFailure(@NonNull Exception e);
+    }
+
+    /** Prepares the backend to read the given {@code FORMAT_} flags. Call before decoding. */
+    void start(int barcodeFormats);
+
+    /** Decodes {@code frame} asynchronously. */
+    void decode(CroppedFrame frame, Callback callback);
+
+    /** Releases the backend's resources. {@link #start} may be called again afterwards. */
+    void stop();
+}
@@ -0,0 +1,25 @@
+package ITM.maint.barcodescan.decoder;
+
+/** Creates the decoder backend selected in settings. */
+public final class BarcodeDecoders {
+
+    /** ML Kit, switching to ZXing for the session if ML Kit fails. */
+    public static final String BACKEND_AUTO = "auto";
+    public static final String BACKEND_MLKIT = "mlkit";
+    public static final String BACKEND_ZXING = "zxing";
+
+    private BarcodeDecoders() {}
+
+    /** Returns a new, unstarted decoder for {@code backend}, or the automatic one if it is unknown. */
+    public static BarcodeDecoder create(String backend) {
+        switch (backend) {
+            case BACKEND_MLKIT:
+                return new FirebaseBarcodeDecoder();
+            case BACKEND_ZXING:
+                return new ZxingBarcodeDecoder();
+            default:
+                return new FallbackBarcodeDecoder(
+                        new FirebaseBarcodeDecoder(), new ZxingBarcodeDecoder());
+        }
+    }
+}
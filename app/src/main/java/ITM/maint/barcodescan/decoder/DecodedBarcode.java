@@ -0,0 +1,53 @@
+package ITM.maint.barcodescan.decoder;
+
+import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
+
+/**
+ * A barcode read by a {@link BarcodeDecoder}, independent of the backend that read it. Formats are
+ * the {@link FirebaseVisionBarcode} {@code FORMAT_} flags, which the settings are stored as, and
+ * the bounding box is in the upright detector input's pixels. Immutable.
+ */
+public final class DecodedBarcode {
+
+    @Nullable private final String rawValue;
+    private final int format;
+    @Nullable private final Rect boundingBox;
+
+    public DecodedBarcode(@Nullable String rawValue, int format, @Nullable Rect boundingBox) {
+        this.rawValue = rawValue;
+        this.format = format;
+        this.boundingBox = boundingBox;
+    }
+
+    public static DecodedBarcode from(FirebaseVisionBarcode barcode) {
+        return new DecodedBarcode(
+                barcode.getRawValue(), barcode.getFormat(), barcode.getBoundingBox());
+    }
+
+    @Nullable
+    public String getRawValue() {
+        return rawValue;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the bounding box, or null if the backend reported none. The box is shared and must
+     * not be modified.
+     */
+    @Nullable
+    public Rect getBoundingBox() {
+        return boundingBox;
+    }
+
+    @Override
+    public String toString() {
+        return format + ":" + rawValue + " " + boundingBox;
+    }
+}
@@ -0,0 +1,175 @@
+package ITM.maint.barcodescan.decoder;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.os.Trace;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.google.firebase.ml.vision.common.FirebaseVisionImage;
+import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import ITM.maint.barcodescan.AppExecutor;
+import ITM.maint.barcodescan.common.FrameMetadata;
+import ITM.maint.barcodescan.common.ReticleCropper.CroppedFrame;
+import ITM.maint.barcodescan.common.preferences.PreferenceUtils;
+import ITM.maint.barcodescan.perf.PipelineMetrics;
+import ITM.maint.barcodescan.perf.StartupTimeline;
+import ITM.maint.barcodescan.perf.StartupTimeline.Milestone;
+
+/**
+ * Builds the decoder selected in settings ahead of the scan screen and decodes one blank frame
+ * with it on the detector thread, so that loading ML Kit's model and native code is not paid for
+ * by the first camera frame. {@link ITM.maint.barcodescan.BarcodeProcessor} {@link #take takes}
+ * the warm decoder when it starts; later sessions build their own in an already warm process.
+ */
+@Singleton
+public class DecoderPrewarmer {
+
+    private static final String TAG = "DecoderPrewarmer";
+
+    // About the size of a reticle crop from the default analysis stream.
+    private static final int FRAME_WIDTH = 640;
+    private static final int FRAME_HEIGHT = 480;
+    private static final long WARM_UP_TIMEOUT_MS = 5000;
+
+    private final Context context;
+    private final Executor executor;
+
+    // Guarded by this.
+    @Nullable private BarcodeDecoder warmDecoder;
+    private String warmBackend;
+    private int warmFormats;
+    // Set once a session has asked for a decoder; one warmed up after that would never be taken.
+    private boolean taken;
+
+    @Inject
+    public DecoderPrewarmer(Context context, AppExecutor appExecutor) {
+        this.context = context;
+        this.executor = appExecutor.detectorThread();
+    }
+
+    /** Starts warming up a decoder for the current settings on the detector thread. */
+    public void prewarm() {
+        executor.execute(this::warmUp);
+    }
+
+    /**
+     * Returns the warm decoder, already started, if one is ready for {@code backend} and {@code
+     * barcodeFormats}, or null. The caller owns it from then on. A warm decoder for other settings
+     * is stopped and dropped. A decoder still warming up is stopped when it finishes.
+     */
+    @Nullable
+    public synchronized BarcodeDecoder take(String backend, int barcodeFormats) {
+        taken = true;
+        BarcodeDecoder decoder = warmDecoder;
+        warmDecoder = null;
+        if (decoder != null && (!backend.equals(warmBackend) || barcodeFormats != warmFormats)) {
+            decoder.stop();
+            return null;
+        }
+        return decoder;
+    }
+
+    @WorkerThread
+    private void warmUp() {
+        String backend = PreferenceUtils.getDecoderBackend(context);
+        int formats = PreferenceUtils.getBarcodeFormats(context);
+        long startNanos = PipelineMetrics.now();
+        BarcodeDecoder decoder;
+        Trace.beginSection("DecoderPrewarmer.warmUp");
+        try {
+            decoder = BarcodeDecoders.create(backend);
+            decoder.start(formats);
+            decodeBlankFrame(decoder);
+        } finally {
+            Trace.endSection();
+        }
+        Log.i(TAG, String.format(Locale.US, "Warmed up the %s decoder in %.1f ms",
+                backend, (PipelineMetrics.now() - startNanos) / 1e6));
+        StartupTimeline.mark(Milestone.DETECTOR_WARMED);
+
+        BarcodeDecoder replaced;
+        synchronized (this) {
+            if (taken) {
+                replaced = decoder;
+            } else {
+                replaced = warmDecoder;
+                warmDecoder = decoder;
+                warmBackend = backend;
+                warmFormats = formats;
+            }
+        }
+        if (replaced != null) {
+            replaced.stop();
+        }
+    }
+
+    /** Decodes a mid-grey NV21 frame, which holds no edge to find, and waits for the result. */
+    @WorkerThread
+    private static void decodeBlankFrame(BarcodeDecoder decoder) {
+        byte[] nv21 = new byte[FRAME_WIDTH * FRAME_HEIGHT * 3 / 2];
+        Arrays.fill(nv21, (byte) 128);
+        FrameMetadata frameMetadata =
+                new FrameMetadata.Builder()
+                        .setWidth(FRAME_WIDTH)
+                        .setHeight(FRAME_HEIGHT)
+                        .setRotation(FirebaseVisionImageMetadata.ROTATION_0)
+                        .setFormat(ImageFormat.NV21)
+                        .build();
+        FirebaseVisionImageMetadata metadata =
+                new FirebaseVisionImageMetadata.Builder()
+                        .setWidth(FRAME_WIDTH)
+                        .setHeight(FRAME_HEIGHT)
+                        .setFormat(FirebaseVisionImageMetadata.IMAGE_FORMAT_NV21)
+                        .setRotation(FirebaseVisionImageMetadata.ROTATION_0)
+                        .build();
+        CroppedFrame frame =
+                new CroppedFrame(
+                        FirebaseVisionImage.fromByteArray(nv21, metadata),
+                        new Rect(0, 0, FRAME_WIDTH, FRAME_HEIGHT),
+                        null,
+                        ByteBuffer.wrap(nv21),
+                        frameMetadata);
+
+        // ML Kit calls back on the main thread, which this thread is not, so waiting is safe.
+        CountDownLatch decoded = new CountDownLatch(1);
+        decoder.decode(
+                frame,
+                new BarcodeDecoder.Callback() {
+                    @Override
+                    public void onDecoded(@NonNull List<DecodedBarcode> barcodes) {
+                        decoded.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        // E.g. the model is still downloading; the scan screen will retry.
+                        Log.w(TAG, "Warm-up decode failed", e);
+                        decoded.countDown();
+                    }
+                });
+        try {
+            if (!decoded.await(WARM_UP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Warm-up decode timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
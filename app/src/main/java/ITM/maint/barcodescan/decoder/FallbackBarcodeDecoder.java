@@ -0,0 +1,64 @@
+package ITM.maint.barcodescan.decoder;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+import ITM.maint.barcodescan.common.ReticleCropper.CroppedFrame;
+
+/**
+ * Decodes with a primary backend until it fails, e.g. because the ML Kit model is not available
+ * on the device, and with the fallback backend for the rest of the session. The failed frame is
+ * retried with the fallback, so no result is lost.
+ */
+public class FallbackBarcodeDecoder implements BarcodeDecoder {
+
+    private static final String TAG = "FallbackBarcodeDecoder";
+
+    private final BarcodeDecoder primary;
+    private final BarcodeDecoder fallback;
+    private volatile boolean usingFallback;
+
+    public FallbackBarcodeDecoder(BarcodeDecoder primary, BarcodeDecoder fallback) {
+        this.primary = primary;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void start(int barcodeFormats) {
+        usingFallback = false;
+        primary.start(barcodeFormats);
+        fallback.start(barcodeFormats);
+    }
+
+    @Override
+    public void decode(CroppedFrame frame, Callback callback) {
+        if (usingFallback) {
+            fallback.decode(frame, callback);
+            return;
+        }
+        primary.decode(
+                frame,
+                new Callback() {
+                    @Override
+                    public void onDecoded(@NonNull List<DecodedBarcode> barcodes) {
+                        callback.onDecoded(barcodes);
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        Log.w(TAG, "Primary decoder failed, falling back for this session", e);
+                        usingFallback = true;
+                        fallback.decode(frame, callback);
+                    }
+                });
+    }
+
+    @Override
+    public void stop() {
+        primary.stop();
+        fallback.stop();
+    }
+}
@@ -0,0 +1,50 @@
+package ITM.maint.barcodescan.decoder;
+
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetector;
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetectorOptions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ITM.maint.barcodescan.common.BarcodeDetectorManager;
+import ITM.maint.barcodescan.common.ReticleCropper.CroppedFrame;
+
+/** Decodes with the ML Kit barcode detector. Results are delivered on the main thread. */
+public class FirebaseBarcodeDecoder implements BarcodeDecoder {
+
+    private final BarcodeDetectorManager detectorManager = new BarcodeDetectorManager();
+
+    @Override
+    public void start(int barcodeFormats) {
+        // The builder ORs its arguments together, so the combined flags can be passed as one.
+        detectorManager.start(
+                new FirebaseVisionBarcodeDetectorOptions.Builder()
+                        .setBarcodeFormats(barcodeFormats)
+                        .build());
+    }
+
+    @Override
+    public void decode(CroppedFrame frame, Callback callback) {
+        FirebaseVisionBarcodeDetector detector = detectorManager.getDetector();
+        if (detector == null) {
+            callback.onFailure(new IllegalStateException("Barcode detector is not started"));
+            return;
+        }
+        detector.detectInImage(frame.image)
+                .addOnSuccessListener(
+                        barcodes -> {
+                            List<DecodedBarcode> decoded = new ArrayList<>(barcodes.size());
+                            for (FirebaseVisionBarcode barcode : barcodes) {
+                                decoded.add(DecodedBarcode.from(barcode));
+                            }
+                            callback.onDecoded(decoded);
+                        })
+                .addOnFailureListener(callback::onFailure);
+    }
+
+    @Override
+    public void stop() {
+        detectorManager.stop();
+    }
+}
@@ -0,0 +1,300 @@
+package ITM.maint.barcodescan.decoder;
+
+import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
+import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import ITM.maint.barcodescan.common.FrameMetadata;
+import ITM.maint.barcodescan.common.ReticleCropper.CroppedFrame;
+
+/**
+ * Decodes in pure Java with ZXing, straight from the luma plane of the frame's NV21 buffer. Needs
+ * no downloaded model, so it also works where ML Kit is unavailable. Frames are decoded one at a
+ * time on the decoder's own thread; the luma plane is first turned upright, so boxes come out in
+ * the same coordinates as ML Kit's.
+ *
+ * <p>A {@link #synchronous() synchronous} decoder instead decodes on the thread that calls {@link
+ * #decode}, which makes frame replays repeatable.
+ */
+public class ZxingBarcodeDecoder implements BarcodeDecoder {
+
+    // ML Kit format flags and the ZXing formats they stand for, at the same index.
+    private static final int[] FIREBASE_FORMATS = {
+            FirebaseVisionBarcode.FORMAT_CODE_128,
+            FirebaseVisionBarcode.FORMAT_CODE_39,
+            FirebaseVisionBarcode.FORMAT_CODE_93,
+            FirebaseVisionBarcode.FORMAT_CODABAR,
+            FirebaseVisionBarcode.FORMAT_DATA_MATRIX,
+            FirebaseVisionBarcode.FORMAT_EAN_13,
+            FirebaseVisionBarcode.FORMAT_EAN_8,
+            FirebaseVisionBarcode.FORMAT_ITF,
+            FirebaseVisionBarcode.FORMAT_QR_CODE,
+            FirebaseVisionBarcode.FORMAT_UPC_A,
+            FirebaseVisionBarcode.FORMAT_UPC_E,
+            FirebaseVisionBarcode.FORMAT_PDF417,
+            FirebaseVisionBarcode.FORMAT_AZTEC
+    };
+    private static final BarcodeFormat[] ZXING_FORMATS = {
+            BarcodeFormat.CODE_128,
+            BarcodeFormat.CODE_39,
+            BarcodeFormat.CODE_93,
+            BarcodeFormat.CODABAR,
+            BarcodeFormat.DATA_MATRIX,
+            BarcodeFormat.EAN_13,
+            BarcodeFormat.EAN_8,
+            BarcodeFormat.ITF,
+            BarcodeFormat.QR_CODE,
+            BarcodeFormat.UPC_A,
+            BarcodeFormat.UPC_E,
+            BarcodeFormat.PDF_417,
+            BarcodeFormat.AZTEC
+    };
+    private static final Result[] NO_RESULTS = new Result[0];
+
+    private final boolean synchronous;
+    // Held for a whole decode. A decode still running on a stopped executor may otherwise overlap
+    // the first one on the next executor, and both use the readers and the upright buffer.
+    private final Object decodeLock = new Object();
+    // Guarded by decodeLock.
+    private final MultiFormatReader reader = new MultiFormatReader();
+    private final GenericMultipleBarcodeReader multipleReader =
+            new GenericMultipleBarcodeReader(reader);
+    @Nullable private ExecutorService executor;
+    // Passed on every decode: the multiple reader hands its own hints to the reader each time.
+    private volatile Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+
+    // Reused across frames, guarded by decodeLock.
+    private byte[] uprightLuma = new byte[0];
+    private int uprightWidth;
+    private int uprightHeight;
+
+    public ZxingBarcodeDecoder() {
+        this(false);
+    }
+
+    private ZxingBarcodeDecoder(boolean synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    /** Returns a decoder that decodes and calls back on the thread that calls {@link #decode}. */
+    public static ZxingBarcodeDecoder synchronous() {
+        return new ZxingBarcodeDecoder(true);
+    }
+
+    @Override
+    public synchronized void start(int barcodeFormats) {
+        EnumSet<BarcodeFormat> formats = EnumSet.noneOf(BarcodeFormat.class);
+        for (int i = 0; i < FIREBASE_FORMATS.length; i++) {
+            if ((barcodeFormats & FIREBASE_FORMATS[i]) != 0) {
+                formats.add(ZXING_FORMATS[i]);
+            }
+        }
+        Map<DecodeHintType, Object> newHints = new EnumMap<>(DecodeHintType.class);
+        newHints.put(DecodeHintType.POSSIBLE_FORMATS, formats);
+        hints = newHints;
+        if (executor == null && !synchronous) {
+            executor = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    @Override
+    public synchronized void decode(CroppedFrame frame, Callback callback) {
+        if (synchronous) {
+            decodeNow(frame, callback);
+            return;
+        }
+        if (executor == null) {
+            callback.onFailure(new IllegalStateException("ZXing decoder is not started"));
+            return;
+        }
+        try {
+            executor.execute(() -> decodeNow(frame, callback));
+        } catch (RejectedExecutionException e) {
+            callback.onFailure(e);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Decodes {@code frame} on the calling thread. Used by the decoder thread, and directly by
+     * benchmarks that want to time the decode alone. Safe to call from several threads; decodes
+     * run one at a time.
+     */
+    public List<DecodedBarcode> decodeBlocking(CroppedFrame frame) {
+        Result[] results = decodeResults(frame);
+        List<DecodedBarcode> barcodes = new ArrayList<>(results.length);
+        for (Result result : results) {
+            barcodes.add(new DecodedBarcode(
+                    result.getText(),
+                    toFirebaseFormat(result.getBarcodeFormat()),
+                    boundingBoxOf(result)));
+        }
+        return barcodes;
+    }
+
+    /** Returns ZXing's results for {@code frame}, in upright coordinates; empty if none. */
+    Result[] decodeResults(CroppedFrame frame) {
+        synchronized (decodeLock) {
+            return decodeLocked(frame);
+        }
+    }
+
+    private Result[] decodeLocked(CroppedFrame frame) {
+        ByteBuffer buffer = frame.getBuffer();
+        FrameMetadata metadata = frame.getBufferMetadata();
+        if (buffer == null || metadata == null || !buffer.hasArray()) {
+            throw new IllegalArgumentException("ZXing needs a frame backed by an NV21 array");
+        }
+        toUpright(
+                buffer.array(),
+                buffer.arrayOffset(),
+                metadata.getWidth(),
+                metadata.getHeight(),
+                metadata.getRotation());
+        BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(new PlanarYUVLuminanceSource(
+                uprightLuma, uprightWidth, uprightHeight, 0, 0, uprightWidth, uprightHeight, false)));
+        try {
+            return multipleReader.decodeMultiple(bitmap, hints);
+        } catch (NotFoundException e) {
+            return NO_RESULTS;
+        } finally {
+            reader.reset();
+        }
+    }
+
+    private void decodeNow(CroppedFrame frame, Callback callback) {
+        List<DecodedBarcode> barcodes;
+        try {
+            barcodes = decodeBlocking(frame);
+        } catch (RuntimeException e) {
+            callback.onFailure(e);
+            return;
+        }
+        callback.onDecoded(barcodes);
+    }
+
+    /** Copies the luma plane into {@link #uprightLuma}, rotated by {@code rotation} clockwise. */
+    private void toUpright(byte[] nv21, int offset, int width, int height, int rotation) {
+        int size = width * height;
+        if (uprightLuma.length < size) {
+            uprightLuma = new byte[size];
+        }
+        byte[] upright = uprightLuma;
+        switch (rotation) {
+            case FirebaseVisionImageMetadata.ROTATION_90:
+                uprightWidth = height;
+                uprightHeight = width;
+                for (int y = 0; y < height; y++) {
+                    int row = offset + y * width;
+                    int column = height - 1 - y;
+                    for (int x = 0; x < width; x++) {
+                        upright[x * height + column] = nv21[row + x];
+                    }
+                }
+                break;
+            case FirebaseVisionImageMetadata.ROTATION_180:
+                uprightWidth = width;
+                uprightHeight = height;
+                for (int i = 0; i < size; i++) {
+                    upright[size - 1 - i] = nv21[offset + i];
+                }
+                break;
+            case FirebaseVisionImageMetadata.ROTATION_270:
+                uprightWidth = height;
+                uprightHeight = width;
+                for (int y = 0; y < height; y++) {
+                    int row = offset + y * width;
+                    for (int x = 0; x < width; x++) {
+                        upright[(width - 1 - x) * height + y] = nv21[row + x];
+                    }
+                }
+                break;
+            default:
+                uprightWidth = width;
+                uprightHeight = height;
+                System.arraycopy(nv21, offset, upright, 0, size);
+                break;
+        }
+    }
+
+    @Nullable
+    private static Rect boundingBoxOf(Result result) {
+        int[] bounds = boundsOf(result.getResultPoints());
+        return bounds != null ? new Rect(bounds[0], bounds[1], bounds[2], bounds[3]) : null;
+    }
+
+    /**
+     * Returns the box around {@code points} as {left, top, right, bottom}, or null if there are
+     * none. Plain ints rather than a {@link Rect}, so JVM tests can check them.
+     */
+    @Nullable
+    static int[] boundsOf(@Nullable ResultPoint[] points) {
+        if (points == null || points.length == 0) {
+            return null;
+        }
+        float left = Float.MAX_VALUE;
+        float top = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE;
+        float bottom = -Float.MAX_VALUE;
+        for (ResultPoint point : points) {
+            if (point == null) {
+                continue;
+            }
+            left = Math.min(left, point.getX());
+            top = Math.min(top, point.getY());
+            right = Math.max(right, point.getX());
+            bottom = Math.max(bottom, point.getY());
+        }
+        if (left > right) {
+            return null;
+        }
+        // 1D codes are reported as the two ends of a scan line; give them a nominal height so the
+        // box can be hit-tested and compared like ML Kit's.
+        float minHeight = (right - left) / 4;
+        if (bottom - top < minHeight) {
+            float centerY = (top + bottom) / 2;
+            top = centerY - minHeight / 2;
+            bottom = centerY + minHeight / 2;
+        }
+        return new int[] {(int) left, (int) top, (int) Math.ceil(right), (int) Math.ceil(bottom)};
+    }
+
+    private static int toFirebaseFormat(BarcodeFormat format) {
+        for (int i = 0; i < ZXING_FORMATS.length; i++) {
+            if (ZXING_FORMATS[i] == format) {
+                return FIREBASE_FORMATS[i];
+            }
+        }
+        return FirebaseVisionBarcode.FORMAT_UNKNOWN;
+    }
+}
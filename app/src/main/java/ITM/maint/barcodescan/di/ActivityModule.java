@@ -1,6 +1,7 @@
 package ITM.maint.barcodescan.di;
 
 import ITM.maint.barcodescan.CodeAnalyzer;
+import ITM.maint.barcodescan.SettingsFragment;
 import ITM.maint.barcodescan.TestActivity;
 import dagger.Module;
 import dagger.android.ContributesAndroidInjector;
@@ -17,4 +18,7 @@ public abstract class ActivityModule {
 
     @ContributesAndroidInjector
     public abstract CodeAnalyzer codeAnalyzer();
+
+    @ContributesAndroidInjector
+    public abstract SettingsFragment settingsFragment();
 }
\ No newline at end of file
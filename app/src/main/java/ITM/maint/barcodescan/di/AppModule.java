@@ -38,7 +38,9 @@ public class AppModule {
                 Executors.newSingleThreadExecutor(),
                 Executors.newSingleThreadExecutor(),
                 new AppExecutor.AnimationThreadExecutor(),
-                new AppExecutor.MainThreadExecutor());
+                new AppExecutor.MainThreadExecutor(),
+                Executors.newSingleThreadExecutor(),
+                Executors.newSingleThreadExecutor());
     }
 
 }
\ No newline at end of file
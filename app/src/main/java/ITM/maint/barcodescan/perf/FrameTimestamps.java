@@ -0,0 +1,14 @@
+package ITM.maint.barcodescan.perf;
+
+/**
+ * When one analysis frame reached each pipeline stage, in {@link PipelineMetrics#now()} nanos.
+ * Written by the thread handling the frame at that stage; 0 means the stage was not reached.
+ */
+public final class FrameTimestamps {
+    // The sensor's exposure timestamp, which may use a different clock; see PipelineMetrics.
+    public long sensorNanos;
+    public long receivedNanos;
+    public long acquiredNanos;
+    public long submittedNanos;
+    public long completedNanos;
+}
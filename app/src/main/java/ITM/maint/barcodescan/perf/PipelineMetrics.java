@@ -0,0 +1,131 @@
+package ITM.maint.barcodescan.perf;
+
+import android.os.SystemClock;
+
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-stage latency histograms of the detection pipeline. Stages are timed with
+ * {@link #now()}, which uses the same clock as camera timestamps whose source is realtime.
+ *
+ * <p>The same stages are wrapped in {@link android.os.Trace} sections, so a systrace or Perfetto
+ * capture lines them up with the rest of the system.
+ */
+public class PipelineMetrics {
+
+    /** The intervals a frame's latency is split into. */
+    public enum Stage {
+        /** Frame handed to the processor until its detector input is copied out. */
+        ACQUIRE,
+        /** Copied until submitted to the detector, i.e. time spent waiting in the queue. */
+        QUEUE,
+        /** Submitted until the detector reported the frame's barcodes. */
+        DETECT,
+        /** Detection result until its workflow state was applied on a vsync. */
+        RESULT,
+        /** One draw pass of the overlay. */
+        DRAW,
+        /** Sensor exposure until the frame's workflow state was applied. */
+        SENSOR_TO_RESULT
+    }
+
+    // Sensor timestamps from an unknown clock source can be off by anything; ignore implausible ones.
+    private static final long MAX_SENSOR_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+
+    public PipelineMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /** Records that {@code stage} ran from {@code startNanos} to {@code endNanos}. */
+    public void record(Stage stage, long startNanos, long endNanos) {
+        if (startNanos > 0 && endNanos >= startNanos) {
+            histograms[stage.ordinal()].recordNanos(endNanos - startNanos);
+        }
+    }
+
+    /**
+     * Records the latency from a camera sensor timestamp, if that timestamp appears to use the
+     * same clock as {@link #now()}.
+     */
+    public void recordSensorLatency(long sensorNanos, long endNanos) {
+        long latency = endNanos - sensorNanos;
+        if (sensorNanos > 0 && latency >= 0 && latency < MAX_SENSOR_LATENCY_NANOS) {
+            histograms[Stage.SENSOR_TO_RESULT.ordinal()].recordNanos(latency);
+        }
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Returns one CSV row per stage: label, stage, count, mean, p50, p95, p99 and max, in
+     * milliseconds. Cheap enough to call on the main thread.
+     */
+    public String toCsv(String label) {
+        StringBuilder csv = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            csv.append(String.format(Locale.US, "%s,%s,%d,%.2f,%.2f,%.2f,%.2f,%.2f\n",
+                    label,
+                    stage,
+                    histogram.getCount(),
+                    histogram.getMeanMillis(),
+                    histogram.getPercentileMillis(50),
+                    histogram.getPercentileMillis(95),
+                    histogram.getPercentileMillis(99),
+                    histogram.getMaxMillis()));
+        }
+        return csv.toString();
+    }
+
+    /** Appends {@link #toCsv rows} to {@code file}, writing the header first if it is new. */
+    @WorkerThread
+    public static void appendCsv(File file, String rows) throws IOException {
+        boolean isNew = !file.exists();
+        try (Writer writer = new FileWriter(file, true)) {
+            if (isNew) {
+                writer.write("label,stage,count,mean_ms,p50_ms,p95_ms,p99_ms,max_ms\n");
+            }
+            writer.write(rows);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            summary.append(String.format(Locale.US, "%s p50=%.1f p95=%.1f p99=%.1f ms; ",
+                    stage,
+                    histogram.getPercentileMillis(50),
+                    histogram.getPercentileMillis(95),
+                    histogram.getPercentileMillis(99)));
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package ITM.maint.barcodescan.perf;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * When the steps of a cold start were first reached, in milliseconds since the process started.
+ * Each milestone is recorded and logged once per process, so launches into a running process,
+ * whose camera and detector are already warm, do not overwrite the cold start.
+ *
+ * <p>Filter logcat on {@value #TAG} to compare launches before and after a change.
+ */
+public final class StartupTimeline {
+
+    private static final String TAG = "StartupTimeline";
+
+    /** The steps from launch to the first decoded frame, roughly in the order they complete. */
+    public enum Milestone {
+        /** The camera's characteristics were read from the cache or queried. */
+        CAPABILITIES_LOADED,
+        /** A decoder was built and had decoded a blank frame, off the main thread. */
+        DETECTOR_WARMED,
+        /** The preview's surface texture became available, i.e. the views were laid out. */
+        PREVIEW_SURFACE_READY,
+        /** The camera device was opened. */
+        CAMERA_OPENED,
+        /** The capture session was configured and its repeating request issued. */
+        SESSION_CONFIGURED,
+        /** The first analysis frame arrived from the camera. */
+        FIRST_FRAME,
+        /** The detector returned its result for the first frame. */
+        FIRST_DECODE
+    }
+
+    private static final AtomicLongArray reachedMillis =
+            new AtomicLongArray(Milestone.values().length);
+
+    private StartupTimeline() {}
+
+    /** Records that {@code milestone} was reached now, unless it was already reached. */
+    public static void mark(Milestone milestone) {
+        if (reachedMillis.get(milestone.ordinal()) != 0) {
+            return;
+        }
+        // At least 1, so 0 keeps meaning unreached.
+        long millis = Math.max(1, SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime());
+        if (reachedMillis.compareAndSet(milestone.ordinal(), 0, millis)) {
+            Log.i(TAG, milestone + " at " + millis + " ms after launch");
+            if (milestone == Milestone.FIRST_DECODE) {
+                Log.i(TAG, "Cold start: " + summary());
+            }
+        }
+    }
+
+    /** Returns when {@code milestone} was reached, in ms since launch, or -1 if it was not. */
+    public static long getMillis(Milestone milestone) {
+        long millis = reachedMillis.get(milestone.ordinal());
+        return millis != 0 ? millis : -1;
+    }
+
+    private static String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (Milestone milestone : Milestone.values()) {
+            if (summary.length() > 0) {
+                summary.append(", ");
+            }
+            summary.append(milestone).append('=').append(getMillis(milestone));
+        }
+        return summary.toString();
+    }
+}
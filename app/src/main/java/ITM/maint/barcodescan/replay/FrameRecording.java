@@ -0,0 +1,136 @@
+package ITM.maint.barcodescan.replay;
+
+import android.graphics.ImageFormat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+import ITM.maint.barcodescan.common.CameraSource;
+import ITM.maint.barcodescan.common.FrameMetadata;
+
+/**
+ * Recorded camera frames for {@link FrameReplaySource}. A recording is a raw file of NV21 frames
+ * of equal size, back to back, plus a sidecar next to it named after it with {@code .meta}
+ * appended. The sidecar is a properties file describing the frames:
+ *
+ * <pre>
+ * width=1280
+ * height=720
+ * # Clockwise degrees, as reported by the camera.
+ * rotation=90
+ * # Optional, one of CameraCharacteristics.LENS_FACING_*.
+ * facing=1
+ * </pre>
+ *
+ * <p>The frame file is memory-mapped, so frames are paged in as they are replayed and never
+ * copied onto the heap here.
+ */
+public class FrameRecording implements Closeable {
+
+    public static final String SIDECAR_SUFFIX = ".meta";
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer frames;
+    private final FrameMetadata frameMetadata;
+    private final int frameSize;
+    private final int frameCount;
+
+    private FrameRecording(
+            RandomAccessFile file, MappedByteBuffer frames, FrameMetadata frameMetadata) {
+        this.file = file;
+        this.frames = frames;
+        this.frameMetadata = frameMetadata;
+        this.frameSize = frameMetadata.getWidth() * frameMetadata.getHeight() * 3 / 2;
+        this.frameCount = frames.capacity() / frameSize;
+    }
+
+    /** Opens the recording in {@code framesFile}, reading its sidecar for the frame size. */
+    public static FrameRecording open(File framesFile) throws IOException {
+        FrameMetadata frameMetadata =
+                readSidecar(new File(framesFile.getPath() + SIDECAR_SUFFIX));
+        RandomAccessFile file = new RandomAccessFile(framesFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer frames = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            FrameRecording recording = new FrameRecording(file, frames, frameMetadata);
+            if (recording.frameCount == 0) {
+                throw new IOException(framesFile + " holds no complete frame");
+            }
+            return recording;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static FrameMetadata readSidecar(File sidecar) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(sidecar)) {
+            properties.load(in);
+        }
+        int width = getInt(properties, "width", -1);
+        int height = getInt(properties, "height", -1);
+        if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IOException(sidecar + ": width and height must be positive and even");
+        }
+        return new FrameMetadata.Builder()
+                .setWidth(width)
+                .setHeight(height)
+                .setRotation(FrameMetadata.toFirebaseRotation(getInt(properties, "rotation", 0)))
+                .setCameraFacing(getInt(properties, "facing", CameraSource.CAMERA_FACING_BACK))
+                .setFormat(ImageFormat.NV21)
+                .build();
+    }
+
+    private static int getInt(Properties properties, String key, int defaultValue)
+            throws IOException {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid " + key + ": " + value, e);
+        }
+    }
+
+    public FrameMetadata getFrameMetadata() {
+        return frameMetadata;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns a read-only view of frame {@code index}, positioned at its first byte. Each call
+     * returns a new view, so frames may be read from several threads.
+     */
+    public ByteBuffer getFrame(int index) {
+        if (index < 0 || index >= frameCount) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+        }
+        ByteBuffer frame = frames.asReadOnlyBuffer();
+        frame.position(index * frameSize);
+        frame.limit(index * frameSize + frameSize);
+        return frame.slice();
+    }
+
+    /**
+     * Closes the file. The mapping itself stays valid until it is garbage collected, so frames
+     * already handed out remain readable.
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
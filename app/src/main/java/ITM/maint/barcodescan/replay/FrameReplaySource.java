@@ -0,0 +1,156 @@
+package ITM.maint.barcodescan.replay;
+
+import android.os.Trace;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.firebase.ml.common.FirebaseMLException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ITM.maint.barcodescan.common.FrameMetadata;
+import ITM.maint.barcodescan.common.GraphicOverlay;
+import ITM.maint.barcodescan.common.VisionImageProcessor;
+
+/**
+ * Feeds a {@link FrameRecording} to a {@link VisionImageProcessor} in place of {@link
+ * ITM.maint.barcodescan.common.CameraSource} or the CameraX analyzer, so field problems can be
+ * reproduced and the pipeline benchmarked without a camera.
+ *
+ * <p>Frames are sent in order from a thread of their own, either at a fixed {@link #setFrameRate
+ * frame rate} or, with a rate of 0, each as soon as the processor returns from the previous one.
+ * Like a camera, a fixed rate keeps going while the detector is busy and the processor drops what
+ * it cannot keep up with. With a decoder that completes synchronously every frame is decoded, in
+ * order, which makes runs repeatable.
+ *
+ * <p>Replaying through {@link ITM.maint.barcodescan.BarcodeProcessor} needs a device; JVM tests
+ * decode a recording's frames directly, see {@link ReplayReport}.
+ */
+public class FrameReplaySource {
+
+    private static final String TAG = "FrameReplaySource";
+
+    /** Told when the replay has sent its last frame, or was stopped. Called on the replay thread. */
+    public interface Listener {
+        void onReplayFinished(int framesSent, long elapsedNanos);
+    }
+
+    private final FrameRecording recording;
+    private final GraphicOverlay graphicOverlay;
+    @Nullable private volatile VisionImageProcessor frameProcessor;
+    @Nullable private Listener listener;
+    private float frameRate;
+    private int loopCount = 1;
+    @Nullable private Thread replayThread;
+    private volatile boolean running;
+
+    public FrameReplaySource(GraphicOverlay graphicOverlay, FrameRecording recording) {
+        this.graphicOverlay = graphicOverlay;
+        this.recording = recording;
+    }
+
+    /** Sets the processor that frames are sent to. Frames are skipped while it is null. */
+    public void setFrameProcessor(@Nullable VisionImageProcessor processor) {
+        frameProcessor = processor;
+    }
+
+    /** Sets the frames per second to replay at, or 0 to replay as fast as the processor takes them. */
+    public void setFrameRate(float frameRate) {
+        if (frameRate < 0) {
+            throw new IllegalArgumentException("Frame rate must not be negative: " + frameRate);
+        }
+        this.frameRate = frameRate;
+    }
+
+    /** Sets how many times the recording is played through. Takes effect on the next start. */
+    public void setLoopCount(int loopCount) {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("Loop count must be at least 1: " + loopCount);
+        }
+        this.loopCount = loopCount;
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts replaying from the first frame. Does nothing if the replay was already started; call
+     * {@link #stop()} first to replay again.
+     */
+    public synchronized void start() {
+        if (replayThread != null) {
+            return;
+        }
+        running = true;
+        long periodNanos = frameRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / frameRate) : 0;
+        int loops = loopCount;
+        Listener finishedListener = listener;
+        replayThread = new Thread(() -> replay(periodNanos, loops, finishedListener), "FrameReplay");
+        replayThread.start();
+    }
+
+    /** Stops the replay and waits for the frame being sent to be handed over. */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = replayThread;
+            replayThread = null;
+            running = false;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void replay(long periodNanos, int loops, @Nullable Listener finishedListener) {
+        FrameMetadata frameMetadata = recording.getFrameMetadata();
+        int frameCount = recording.getFrameCount();
+        int framesSent = 0;
+        long startNanos = System.nanoTime();
+        long nextFrameNanos = startNanos;
+        replay:
+        for (int loop = 0; loop < loops; loop++) {
+            for (int i = 0; i < frameCount; i++) {
+                if (periodNanos > 0) {
+                    long delay;
+                    while (running && (delay = nextFrameNanos - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+                    // After a stall, carry on at the set rate instead of bursting to catch up.
+                    nextFrameNanos = Math.max(nextFrameNanos + periodNanos, System.nanoTime());
+                }
+                if (!running) {
+                    break replay;
+                }
+                VisionImageProcessor processor = frameProcessor;
+                if (processor == null) {
+                    continue;
+                }
+                Trace.beginSection("FrameReplaySource.sendFrame");
+                try {
+                    processor.process(recording.getFrame(i), frameMetadata, graphicOverlay);
+                    framesSent++;
+                } catch (FirebaseMLException e) {
+                    Log.e(TAG, "Failed to process replayed frame " + i, e);
+                } finally {
+                    Trace.endSection();
+                }
+            }
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        Log.d(TAG, "Replayed " + framesSent + " frames in "
+                + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms");
+        if (finishedListener != null) {
+            finishedListener.onReplayFinished(framesSent, elapsedNanos);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ITM.maint.barcodescan.replay;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import ITM.maint.barcodescan.BarcodeProcessor;
+import ITM.maint.barcodescan.perf.LatencyHistogram;
+import ITM.maint.barcodescan.perf.PipelineMetrics;
+import ITM.maint.barcodescan.perf.PipelineMetrics.Stage;
+
+/**
+ * Throughput and latency of one replay through a {@link BarcodeProcessor}. Start the processor
+ * right before the replay so its counters only cover the replayed frames. Immutable.
+ *
+ * <p>The processor needs a device: it draws on a {@link
+ * ITM.maint.barcodescan.common.GraphicOverlay} and paces results on the {@code Choreographer}.
+ * JVM tests drive a decoder with the recording directly and report their own counts instead.
+ */
+public final class ReplayReport {
+
+    public final int framesSent;
+    public final long elapsedNanos;
+    /** Frames that went through the decoder. */
+    public final long framesDecoded;
+    /** Frames answered from the tracker without decoding, because nothing had moved. */
+    public final long framesReused;
+    public final long framesDropped;
+    public final double detectP50Millis;
+    public final double detectP95Millis;
+    public final double detectP99Millis;
+    /** Per-stage percentiles, as logged by the processor. */
+    public final String pipelineSummary;
+
+    private ReplayReport(
+            int framesSent,
+            long elapsedNanos,
+            long framesDecoded,
+            long framesReused,
+            long framesDropped,
+            PipelineMetrics metrics) {
+        this.framesSent = framesSent;
+        this.elapsedNanos = elapsedNanos;
+        this.framesDecoded = framesDecoded;
+        this.framesReused = framesReused;
+        this.framesDropped = framesDropped;
+        LatencyHistogram detect = metrics.getHistogram(Stage.DETECT);
+        detectP50Millis = detect.getPercentileMillis(50);
+        detectP95Millis = detect.getPercentileMillis(95);
+        detectP99Millis = detect.getPercentileMillis(99);
+        pipelineSummary = metrics.toString();
+    }
+
+    /** Takes the report from {@code processor} when a replay of {@code framesSent} frames ends. */
+    public static ReplayReport of(int framesSent, long elapsedNanos, BarcodeProcessor processor) {
+        return new ReplayReport(
+                framesSent,
+                elapsedNanos,
+                processor.getFrameGate().getProcessedFrameCount(),
+                processor.getTracker().getReusedFrameCount(),
+                processor.getFrameGate().getDroppedFrameCount(),
+                processor.getMetrics());
+    }
+
+    /**
+     * Builds the report of a replay that drove a decoder without a {@link BarcodeProcessor}, with
+     * {@link Stage#DETECT} recorded in {@code metrics}.
+     */
+    public static ReplayReport of(
+            int framesSent,
+            long elapsedNanos,
+            long framesDecoded,
+            long framesReused,
+            long framesDropped,
+            PipelineMetrics metrics) {
+        return new ReplayReport(
+                framesSent, elapsedNanos, framesDecoded, framesReused, framesDropped, metrics);
+    }
+
+    /** Returns the frames per second the pipeline produced a result for. */
+    public double getResultsPerSecond() {
+        return perSecond(framesDecoded + framesReused);
+    }
+
+    /** Returns the frames per second the replay offered to the pipeline. */
+    public double getSentPerSecond() {
+        return perSecond(framesSent);
+    }
+
+    private double perSecond(long frames) {
+        return elapsedNanos > 0 ? frames * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "sent=%d (%.1f fps), decoded=%d, reused=%d, dropped=%d, results %.1f fps, "
+                        + "detect p50=%.1f p95=%.1f p99=%.1f ms; %s",
+                framesSent,
+                getSentPerSecond(),
+                framesDecoded,
+                framesReused,
+                framesDropped,
+                getResultsPerSecond(),
+                detectP50Millis,
+                detectP95Millis,
+                detectP99Millis,
+                pipelineSummary);
+    }
+}
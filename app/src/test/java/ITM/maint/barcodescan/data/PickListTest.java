@@ -0,0 +1,61 @@
+package ITM.maint.barcodescan.data;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import ITM.maint.barcodescan.data.PickList.Match;
+import ITM.maint.barcodescan.data.PickList.Progress;
+
+import static org.junit.Assert.assertEquals;
+
+public class PickListTest {
+
+    private static final long FRAME_NANOS = 33_000_000L;
+
+    private final PickList pickList = new PickList(Arrays.asList("ITM-0001", "ITM-0002"));
+
+    @Test
+    public void labelHeldInViewCountsOnce() {
+        long now = 1;
+        assertEquals(Match.EXPECTED, pickList.match("ITM-0001", now));
+        // Decoded on most frames for ten seconds, with a few misses in between.
+        for (int frame = 1; frame < 300; frame++) {
+            now += FRAME_NANOS;
+            if (frame % 7 != 0) {
+                assertEquals(Match.REPEAT, pickList.match("ITM-0001", now));
+            }
+        }
+
+        Progress progress = pickList.getProgress();
+        assertEquals(1, progress.scannedCount);
+        assertEquals(0, progress.duplicateCount);
+    }
+
+    @Test
+    public void labelBackInViewAfterGapIsDuplicate() {
+        pickList.match("ITM-0001", 1);
+
+        assertEquals(Match.DUPLICATE,
+                pickList.match("ITM-0001", 1 + PickList.SIGHTING_GAP_NANOS + 1));
+        assertEquals(1, pickList.getProgress().duplicateCount);
+    }
+
+    @Test
+    public void unexpectedCodeCountsOnce() {
+        assertEquals(Match.UNEXPECTED, pickList.match("FOREIGN", 1));
+        assertEquals(Match.REPEAT, pickList.match("FOREIGN", 1 + PickList.SIGHTING_GAP_NANOS * 5));
+
+        assertEquals(1, pickList.getProgress().unexpectedCount);
+    }
+
+    @Test
+    public void resetForgetsSightings() {
+        pickList.match("ITM-0001", 1);
+        pickList.match("FOREIGN", 1);
+        pickList.reset();
+
+        assertEquals(Match.EXPECTED, pickList.match("ITM-0001", 2));
+        assertEquals(Match.UNEXPECTED, pickList.match("FOREIGN", 2));
+    }
+}
@@ -0,0 +1,107 @@
+package ITM.maint.barcodescan.decoder;
+
+import android.graphics.ImageFormat;
+
+import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.oned.Code128Writer;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import ITM.maint.barcodescan.common.FrameMetadata;
+import ITM.maint.barcodescan.common.ReticleCropper.CroppedFrame;
+
+/** Generates NV21 frames holding a barcode, as a camera would deliver them, for JVM tests. */
+public final class SyntheticFrames {
+
+    private static final byte WHITE = (byte) 235;
+    private static final byte BLACK = (byte) 16;
+    private static final byte NEUTRAL_CHROMA = (byte) 128;
+
+    private SyntheticFrames() {}
+
+    /** Returns an upright {@code width} by {@code height} luma plane with a QR code in its centre. */
+    public static byte[] qrCodeLuma(String contents, int width, int height) throws WriterException {
+        return draw(new QRCodeWriter().encode(contents, BarcodeFormat.QR_CODE, 0, 0),
+                width, height, 4, 4);
+    }
+
+    /** Returns an upright luma plane with a Code 128 barcode across its centre. */
+    public static byte[] code128Luma(String contents, int width, int height)
+            throws WriterException {
+        return draw(new Code128Writer().encode(contents, BarcodeFormat.CODE_128, 0, 0),
+                width, height, 2, height / 3);
+    }
+
+    /** Returns a luma plane holding nothing but mid grey. */
+    public static byte[] blankLuma(int width, int height) {
+        byte[] luma = new byte[width * height];
+        Arrays.fill(luma, (byte) 128);
+        return luma;
+    }
+
+    /**
+     * Returns the NV21 frame a sensor mounted at {@code degrees} clockwise (0 or 90) captures of
+     * the upright {@code luma}, with neutral chroma.
+     */
+    public static byte[] toNv21(byte[] luma, int width, int height, int degrees) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        if (degrees == 90) {
+            // The sensor frame is height wide; turning it 90 degrees clockwise gives the upright one.
+            int sensorWidth = height;
+            int sensorHeight = width;
+            for (int y = 0; y < sensorHeight; y++) {
+                for (int x = 0; x < sensorWidth; x++) {
+                    nv21[y * sensorWidth + x] = luma[x * width + (width - 1 - y)];
+                }
+            }
+        } else {
+            System.arraycopy(luma, 0, nv21, 0, width * height);
+        }
+        Arrays.fill(nv21, width * height, nv21.length, NEUTRAL_CHROMA);
+        return nv21;
+    }
+
+    /** Returns the metadata of an NV21 frame from {@link #toNv21}. */
+    public static FrameMetadata metadata(int width, int height, int degrees) {
+        boolean swapped = degrees == 90;
+        return new FrameMetadata.Builder()
+                .setWidth(swapped ? height : width)
+                .setHeight(swapped ? width : height)
+                .setRotation(swapped
+                        ? FirebaseVisionImageMetadata.ROTATION_90
+                        : FirebaseVisionImageMetadata.ROTATION_0)
+                .setFormat(ImageFormat.NV21)
+                .build();
+    }
+
+    /** Wraps an NV21 frame the way the pipeline hands it to a decoder, without an ML Kit image. */
+    public static CroppedFrame frame(byte[] nv21, FrameMetadata metadata) {
+        return new CroppedFrame(null, null, null, ByteBuffer.wrap(nv21), metadata);
+    }
+
+    private static byte[] draw(BitMatrix matrix, int width, int height, int moduleWidth,
+            int moduleHeight) {
+        byte[] luma = new byte[width * height];
+        Arrays.fill(luma, WHITE);
+        int codeWidth = matrix.getWidth() * moduleWidth;
+        int codeHeight = matrix.getHeight() * moduleHeight;
+        if (codeWidth > width || codeHeight > height) {
+            throw new IllegalArgumentException("Barcode does not fit in " + width + "x" + height);
+        }
+        int left = (width - codeWidth) / 2;
+        int top = (height - codeHeight) / 2;
+        for (int y = 0; y < codeHeight; y++) {
+            for (int x = 0; x < codeWidth; x++) {
+                if (matrix.get(x / moduleWidth, y / moduleHeight)) {
+                    luma[(top + y) * width + left + x] = BLACK;
+                }
+            }
+        }
+        return luma;
+    }
+}
@@ -0,0 +1,160 @@
+package ITM.maint.barcodescan.decoder;
+
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ITM.maint.barcodescan.common.ReticleCropper.CroppedFrame;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Decodes generated frames through {@link ZxingBarcodeDecoder} on the JVM, without a device. */
+public class ZxingBarcodeDecoderTest {
+
+    private static final int WIDTH = 400;
+    private static final int HEIGHT = 240;
+    private static final int ALL_FORMATS =
+            FirebaseVisionBarcode.FORMAT_QR_CODE | FirebaseVisionBarcode.FORMAT_CODE_128;
+
+    private ZxingBarcodeDecoder decoder;
+    private CroppedFrame qrFrame;
+    private CroppedFrame code128Frame;
+
+    @Before
+    public void setUp() throws Exception {
+        decoder = ZxingBarcodeDecoder.synchronous();
+        decoder.start(ALL_FORMATS);
+        qrFrame = SyntheticFrames.frame(
+                SyntheticFrames.toNv21(
+                        SyntheticFrames.qrCodeLuma("ITM-0001", WIDTH, HEIGHT), WIDTH, HEIGHT, 0),
+                SyntheticFrames.metadata(WIDTH, HEIGHT, 0));
+        // Delivered as a sensor mounted at 90 degrees would, so the decoder has to turn it upright.
+        code128Frame = SyntheticFrames.frame(
+                SyntheticFrames.toNv21(
+                        SyntheticFrames.code128Luma("ASSET-42", WIDTH, HEIGHT), WIDTH, HEIGHT, 90),
+                SyntheticFrames.metadata(WIDTH, HEIGHT, 90));
+    }
+
+    @Test
+    public void decodesQrCode() {
+        List<DecodedBarcode> barcodes = decoder.decodeBlocking(qrFrame);
+
+        assertEquals(1, barcodes.size());
+        assertEquals("ITM-0001", barcodes.get(0).getRawValue());
+        assertEquals(FirebaseVisionBarcode.FORMAT_QR_CODE, barcodes.get(0).getFormat());
+    }
+
+    @Test
+    public void decodesRotatedCode128() {
+        List<DecodedBarcode> barcodes = decoder.decodeBlocking(code128Frame);
+
+        assertEquals(1, barcodes.size());
+        assertEquals("ASSET-42", barcodes.get(0).getRawValue());
+        assertEquals(FirebaseVisionBarcode.FORMAT_CODE_128, barcodes.get(0).getFormat());
+    }
+
+    @Test
+    public void qrCodeBoxIsAroundTheCode() {
+        int[] box = boxOf(qrFrame);
+
+        // The QR code is drawn in the middle of the frame, 84 px across without its quiet zone.
+        assertNear(WIDTH / 2, (box[0] + box[2]) / 2, 4);
+        assertNear(HEIGHT / 2, (box[1] + box[3]) / 2, 4);
+        assertTrue(box[0] >= (WIDTH - 84) / 2 && box[2] <= (WIDTH + 84) / 2);
+        assertTrue(box[1] >= (HEIGHT - 84) / 2 && box[3] <= (HEIGHT + 84) / 2);
+    }
+
+    @Test
+    public void rotatedCode128BoxIsInUprightCoordinates() {
+        int[] box = boxOf(code128Frame);
+
+        // Centred in the upright frame, which is WIDTH wide; the sensor frame is only HEIGHT wide.
+        assertNear(WIDTH / 2, (box[0] + box[2]) / 2, 4);
+        assertTrue(box[2] - box[0] > HEIGHT / 2);
+        assertTrue(box[3] <= HEIGHT);
+        // The bars span the middle third of the frame; the scan line crosses them somewhere.
+        int centerY = (box[1] + box[3]) / 2;
+        assertTrue(centerY >= HEIGHT / 3 && centerY <= HEIGHT * 2 / 3);
+        // A 1D code's scan line gets a nominal height of a quarter of its width.
+        assertNear((box[2] - box[0]) / 4, box[3] - box[1], 2);
+    }
+
+    @Test
+    public void scanLineGetsNominalHeight() {
+        int[] box = ZxingBarcodeDecoder.boundsOf(
+                new ResultPoint[] {new ResultPoint(10, 50), new ResultPoint(110, 50)});
+
+        assertArrayEquals(new int[] {10, 37, 110, 63}, box);
+    }
+
+    @Test
+    public void noPointsGiveNoBox() {
+        assertNull(ZxingBarcodeDecoder.boundsOf(null));
+        assertNull(ZxingBarcodeDecoder.boundsOf(new ResultPoint[0]));
+    }
+
+    @Test
+    public void ignoresFormatsNotStartedWith() {
+        decoder.start(FirebaseVisionBarcode.FORMAT_QR_CODE);
+
+        assertTrue(decoder.decodeBlocking(code128Frame).isEmpty());
+        assertEquals(1, decoder.decodeBlocking(qrFrame).size());
+    }
+
+    @Test
+    public void blankFrameHoldsNothing() {
+        CroppedFrame blank = SyntheticFrames.frame(
+                SyntheticFrames.toNv21(SyntheticFrames.blankLuma(WIDTH, HEIGHT), WIDTH, HEIGHT, 0),
+                SyntheticFrames.metadata(WIDTH, HEIGHT, 0));
+
+        assertTrue(decoder.decodeBlocking(blank).isEmpty());
+    }
+
+    @Test
+    public void concurrentDecodesDoNotCorruptEachOther() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                CroppedFrame frame = i % 2 == 0 ? qrFrame : code128Frame;
+                results.add(threads.submit(firstValue(frame)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(i % 2 == 0 ? "ITM-0001" : "ASSET-42", results.get(i).get());
+            }
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    private int[] boxOf(CroppedFrame frame) {
+        Result[] results = decoder.decodeResults(frame);
+        assertEquals(1, results.length);
+        return ZxingBarcodeDecoder.boundsOf(results[0].getResultPoints());
+    }
+
+    private static void assertNear(int expected, int actual, int tolerance) {
+        assertTrue("expected " + expected + " but was " + actual,
+                Math.abs(expected - actual) <= tolerance);
+    }
+
+    private Callable<String> firstValue(CroppedFrame frame) {
+        return () -> {
+            List<DecodedBarcode> barcodes = decoder.decodeBlocking(frame);
+            return barcodes.isEmpty() ? null : barcodes.get(0).getRawValue();
+        };
+    }
+}
@@ -0,0 +1,118 @@
+package ITM.maint.barcodescan.replay;
+
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import ITM.maint.barcodescan.decoder.DecodedBarcode;
+import ITM.maint.barcodescan.decoder.SyntheticFrames;
+import ITM.maint.barcodescan.decoder.ZxingBarcodeDecoder;
+import ITM.maint.barcodescan.perf.PipelineMetrics;
+import ITM.maint.barcodescan.perf.PipelineMetrics.Stage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a generated {@link FrameRecording} through {@link ZxingBarcodeDecoder#synchronous()} on
+ * the JVM, the way {@link FrameReplaySource} feeds the pipeline on a device.
+ */
+public class FrameRecordingReplayTest {
+
+    // Upright size; the recording holds frames from a sensor mounted at 90 degrees.
+    private static final int WIDTH = 400;
+    private static final int HEIGHT = 240;
+    private static final int ROTATION_DEGREES = 90;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private ZxingBarcodeDecoder decoder;
+    private FrameRecording recording;
+
+    @Before
+    public void setUp() throws Exception {
+        File framesFile = folder.newFile("scan.nv21");
+        try (OutputStream out = new FileOutputStream(framesFile)) {
+            out.write(nv21(SyntheticFrames.qrCodeLuma("ITM-0001", WIDTH, HEIGHT)));
+            out.write(nv21(SyntheticFrames.blankLuma(WIDTH, HEIGHT)));
+            out.write(nv21(SyntheticFrames.code128Luma("ASSET-42", WIDTH, HEIGHT)));
+            out.write(nv21(SyntheticFrames.qrCodeLuma("ITM-0001", WIDTH, HEIGHT)));
+        }
+        try (Writer sidecar =
+                new FileWriter(framesFile.getPath() + FrameRecording.SIDECAR_SUFFIX)) {
+            sidecar.write("width=" + HEIGHT + "\nheight=" + WIDTH + "\nrotation="
+                    + ROTATION_DEGREES + "\n");
+        }
+        recording = FrameRecording.open(framesFile);
+
+        decoder = ZxingBarcodeDecoder.synchronous();
+        decoder.start(FirebaseVisionBarcode.FORMAT_QR_CODE | FirebaseVisionBarcode.FORMAT_CODE_128);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        decoder.stop();
+        recording.close();
+    }
+
+    @Test
+    public void replaysEveryFrameInOrder() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        List<String> values = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < recording.getFrameCount(); i++) {
+            long decodeStartNanos = System.nanoTime();
+            List<DecodedBarcode> barcodes = decoder.decodeBlocking(SyntheticFrames.frame(
+                    copy(recording.getFrame(i)), recording.getFrameMetadata()));
+            metrics.record(Stage.DETECT, decodeStartNanos, System.nanoTime());
+            values.add(barcodes.isEmpty() ? null : barcodes.get(0).getRawValue());
+        }
+        ReplayReport report = ReplayReport.of(
+                recording.getFrameCount(), System.nanoTime() - startNanos,
+                recording.getFrameCount(), 0, 0, metrics);
+
+        assertArrayEquals(
+                new String[] {"ITM-0001", null, "ASSET-42", "ITM-0001"}, values.toArray());
+        assertEquals(4, report.framesSent);
+        assertEquals(4, report.framesDecoded);
+        assertEquals(0, report.framesReused);
+        assertEquals(0, report.framesDropped);
+        assertEquals(4, metrics.getHistogram(Stage.DETECT).getCount());
+        assertTrue(report.getResultsPerSecond() > 0);
+        assertEquals(report.getSentPerSecond(), report.getResultsPerSecond(), 1e-9);
+    }
+
+    @Test
+    public void readsFrameSizeFromSidecar() {
+        assertEquals(4, recording.getFrameCount());
+        assertEquals(HEIGHT, recording.getFrameMetadata().getWidth());
+        assertEquals(WIDTH, recording.getFrameMetadata().getHeight());
+        assertEquals(HEIGHT * WIDTH * 3 / 2, recording.getFrame(3).remaining());
+    }
+
+    private static byte[] nv21(byte[] luma) {
+        return SyntheticFrames.toNv21(luma, WIDTH, HEIGHT, ROTATION_DEGREES);
+    }
+
+    /** Copies a mapped frame onto the heap, as the pipeline's cropper does before decoding. */
+    private static byte[] copy(ByteBuffer frame) {
+        byte[] nv21 = new byte[frame.remaining()];
+        frame.get(nv21);
+        return nv21;
+    }
+}